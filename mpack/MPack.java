@@ -25,8 +25,11 @@ package mpack;
 
 import java.lang.Boolean;
 import java.lang.Byte;
+import java.lang.CharSequence;
+import java.lang.Character;
 import java.lang.Class;
 import java.lang.ClassCastException;
+import java.lang.ClassValue;
 import java.lang.Double;
 import java.lang.Float;
 import java.lang.IllegalArgumentException;
@@ -35,17 +38,79 @@ import java.lang.Long;
 import java.lang.Object;
 import java.lang.Short;
 import java.lang.String;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 public class MPack {
   private static final int NIL      = 0xc0;
@@ -86,6 +151,24 @@ public class MPack {
     private static final int POSITIVE = 0x00;
     private static final int NEGATIVE = 0xe0;
   }
+  private static class HEADER {
+    private static final int SCALAR = 0;
+    private static final int STRING = 1;
+    private static final int ARRAY  = 2;
+    private static final int MAP    = 3;
+  }
+
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long ASCII_MASK = 0x8080808080808080L;
+
+  // Extension types used by the encodings this library builds on top of
+  // MessagePack.
+  public static final int COLUMNS_TYPE = 100;
+  public static final int STRING_REFERENCE_TYPE = 101;
+
+  // Strings shorter than this are always written in full since a reference
+  // to them wouldn't be any shorter.
+  private static final int MIN_REFERENCED_LENGTH = 4;
 
   public static class Extended {
     public int type;
@@ -102,886 +185,6244 @@ public class MPack {
     }
   }
 
-  public static class Decoder {
-    public final DataInputStream istream;
-
-    public Decoder(InputStream istream) {
-      this.istream = new DataInputStream(istream);
+  // Stores a list of records as one extension value where keys are written
+  // once and each field is a typed column: integers as fixed-width big-endian
+  // binaries, doubles as their IEEE bits, booleans as one byte each, strings
+  // through a dictionary of distinct values and anything else as an array of
+  // values. Columns are only decoded when first accessed. When some records
+  // lack a key, a list of presence bitmaps (nil for columns every record has)
+  // follows the columns, and absent values are stored as zeros in typed
+  // columns.
+  public static class Columns {
+    private static final int INTEGERS = 0;
+    private static final int DOUBLES  = 1;
+    private static final int BOOLEANS = 2;
+    private static final int STRINGS  = 3;
+    private static final int OBJECTS  = 4;
+
+    // Upper bound of the buffer allocated up front for an encoding, larger
+    // tables grow it as they are written.
+    private static final int MAX_INITIAL_SIZE = 1 << 24;
+
+    public final int size;
+    public final List<String> keys;
+    private final byte[] data;
+    private final int[] offsets;
+    private final Object[] columns;
+    private final byte[][] presence;
+    private final HashMap<String, Integer> indexes;
+
+    public Columns(Extended object) throws IOException {
+      if (object.type != COLUMNS_TYPE) {
+        throw new IOException("MPack: unexpected extension type for columns: " + object.type);
+      }
+      final byte[] data = object.data;
+      final Decoder decoder = new Decoder(new ByteArrayInputStream(data));
+      this.size = decoder.decodeInt();
+      this.keys = decoder.decodeList(String.class);
+      this.data = data;
+      this.offsets = new int[this.keys.size() + 1];
+      this.columns = new Object[this.keys.size()];
+      this.indexes = new HashMap<String, Integer>(2 * this.keys.size());
+      int offset = skip(data, skip(data, 0, data.length), data.length);
+      for (int i = 0; i != this.keys.size(); ++i) {
+        this.indexes.put(this.keys.get(i), i);
+        this.offsets[i] = offset;
+        offset = skip(data, offset, data.length);
+        if (offset < 0) {
+          throw new EOFException("MPack: truncated column " + this.keys.get(i));
+        }
+      }
+      this.offsets[this.keys.size()] = offset;
+      this.presence = new byte[this.keys.size()][];
+      if (offset != data.length) {
+        final List<?> presence = (List<?>) decode(new ByteArrayInputStream(data, offset, data.length - offset));
+        if (presence.size() != this.keys.size()) {
+          throw new IOException("MPack: unexpected number of presence bitmaps: " + presence.size());
+        }
+        for (int i = 0; i != this.keys.size(); ++i) {
+          final byte[] bitmap = (byte[]) presence.get(i);
+          if (bitmap != null && 8L * bitmap.length < this.size) {
+            throw new EOFException("MPack: truncated presence bitmap " + this.keys.get(i));
+          }
+          this.presence[i] = bitmap;
+        }
+      }
     }
 
-    private final Long decodePositiveFixnum(int tag) {
-      return (long) ((byte) tag);
+    public static Extended encode(List<? extends Map<String, ?>> rows) throws IOException {
+      final LinkedHashMap<String, Integer> keys = new LinkedHashMap<String, Integer>();
+      for (Map<String, ?> row : rows) {
+        for (String key : row.keySet()) {
+          if (!keys.containsKey(key)) {
+            keys.put(key, keys.size());
+          }
+        }
+      }
+      final Buffer buffer = new Buffer((int) Math.min(64L + 8L * rows.size() * keys.size(), MAX_INITIAL_SIZE));
+      final Encoder encoder = new Encoder(buffer);
+      encoder.encode(rows.size());
+      encoder.encode(new ArrayList<String>(keys.keySet()));
+      final byte[][] presence = new byte[keys.size()][];
+      boolean missing = false;
+      for (String key : keys.keySet()) {
+        final Object[] values = new Object[rows.size()];
+        byte[] bitmap = null;
+        int i = 0;
+        for (Map<String, ?> row : rows) {
+          values[i] = row.get(key);
+          if (values[i] == null && !row.containsKey(key)) {
+            if (bitmap == null) {
+              bitmap = new byte[(values.length + 7) / 8];
+              Arrays.fill(bitmap, (byte) 0xFF);
+            }
+            bitmap[i >>> 3] &= ~(1 << (i & 7));
+          }
+          ++i;
+        }
+        if (bitmap != null) {
+          fillAbsent(values, bitmap);
+          presence[keys.get(key)] = bitmap;
+          missing = true;
+        }
+        encodeColumn(encoder, values);
+      }
+      if (missing) {
+        encoder.encode(Arrays.asList((Object[]) presence));
+      }
+      return new Extended(COLUMNS_TYPE, buffer.toByteArray());
     }
 
-    private final Long decodeNegativeFixnum(int tag) {
-      return (long) ((byte) tag);
+    private static boolean isSet(byte[] bitmap, int i) {
+      return (bitmap[i >>> 3] & (1 << (i & 7))) != 0;
     }
 
-    private final Long decodeUint8() throws IOException {
-      return (long) this.istream.readUnsignedByte();
+    // Gives absent values the zero of the type of the other values so the
+    // column keeps its typed encoding.
+    private static void fillAbsent(Object[] values, byte[] bitmap) {
+      Object sample = null;
+      for (int i = 0; i != values.length && sample == null; ++i) {
+        sample = isSet(bitmap, i) ? values[i] : null;
+      }
+      final Object zero = (sample instanceof Double) ? (Object) 0.0
+        : (sample instanceof Boolean) ? (Object) Boolean.FALSE
+        : (sample instanceof String) ? (Object) ""
+        : (sample instanceof Number) ? (Object) 0L
+        : null;
+      for (int i = 0; i != values.length; ++i) {
+        if (!isSet(bitmap, i)) {
+          values[i] = zero;
+        }
+      }
     }
 
-    private final Long decodeUint16() throws IOException {
-      return (long) this.istream.readUnsignedShort();
+    private static int kind(Object[] values) {
+      int kind = -1;
+      for (Object value : values) {
+        final int k;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+          k = INTEGERS;
+        }
+        else if (value instanceof Double) {
+          k = DOUBLES;
+        }
+        else if (value instanceof Boolean) {
+          k = BOOLEANS;
+        }
+        else if (value instanceof String) {
+          k = STRINGS;
+        }
+        else {
+          return OBJECTS;
+        }
+        if (kind >= 0 && kind != k) {
+          return OBJECTS;
+        }
+        kind = k;
+      }
+      return (kind < 0) ? OBJECTS : kind;
     }
 
-    private final Long decodeUint32() throws IOException {
-      final long upper = this.istream.readUnsignedShort();
-      final long lower = this.istream.readUnsignedShort();
-      return (upper << 16) | lower;
-    }
+    private static void encodeColumn(Encoder encoder, Object[] values) throws IOException {
+      final int kind = kind(values);
+      switch (kind) {
+      case INTEGERS: {
+        long min = 0L;
+        long max = 0L;
+        for (Object value : values) {
+          min = Math.min(min, ((Number) value).longValue());
+          max = Math.max(max, ((Number) value).longValue());
+        }
+        final int width = (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) ? 1
+          : (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) ? 2
+          : (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) ? 4
+          : 8;
+        final byte[] bytes = new byte[width * values.length];
+        for (int i = 0; i != values.length; ++i) {
+          putLong(bytes, i * width, width, ((Number) values[i]).longValue());
+        }
+        encoder.encode(Arrays.asList(kind, width, bytes));
+        break;
+      }
 
-    private final Long decodeUint64() throws IOException {
-      return this.istream.readLong();
-    }
+      case DOUBLES: {
+        final byte[] bytes = new byte[8 * values.length];
+        for (int i = 0; i != values.length; ++i) {
+          putLong(bytes, 8 * i, 8, Double.doubleToRawLongBits((Double) values[i]));
+        }
+        encoder.encode(Arrays.asList(kind, bytes));
+        break;
+      }
 
-    private final Long decodeInt8() throws IOException {
-      return (long) this.istream.readByte();
+      case BOOLEANS: {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i != values.length; ++i) {
+          bytes[i] = (byte) (((Boolean) values[i]) ? 1 : 0);
+        }
+        encoder.encode(Arrays.asList(kind, bytes));
+        break;
+      }
+
+      case STRINGS: {
+        final HashMap<Object, Integer> codes = new HashMap<Object, Integer>();
+        final ArrayList<Object> dictionary = new ArrayList<Object>();
+        final int[] indexes = new int[values.length];
+        for (int i = 0; i != values.length; ++i) {
+          Integer code = codes.get(values[i]);
+          if (code == null) {
+            code = dictionary.size();
+            codes.put(values[i], code);
+            dictionary.add(values[i]);
+          }
+          indexes[i] = code;
+        }
+        final int width = (dictionary.size() <= 256) ? 1 : (dictionary.size() <= 65536) ? 2 : 4;
+        final byte[] bytes = new byte[width * values.length];
+        for (int i = 0; i != values.length; ++i) {
+          putLong(bytes, i * width, width, indexes[i]);
+        }
+        encoder.encode(Arrays.asList(kind, dictionary, bytes));
+        break;
+      }
+
+      default:
+        encoder.encode(Arrays.asList(kind, Arrays.asList(values)));
+      }
     }
 
-    private final Long decodeInt16() throws IOException {
-      return (long) this.istream.readShort();
+    private static void putLong(byte[] bytes, int offset, int width, long value) {
+      for (int i = width - 1; i >= 0; --i) {
+        bytes[offset + i] = (byte) value;
+        value >>= 8;
+      }
     }
 
-    private final Long decodeInt32() throws IOException {
-      return (long) this.istream.readInt();
+    private static long getLong(byte[] bytes, int offset, int width) {
+      long value = bytes[offset];
+      for (int i = 1; i != width; ++i) {
+        value = (value << 8) | (bytes[offset + i] & 0xFF);
+      }
+      return value;
     }
 
-    private final Long decodeInt64() throws IOException {
-      return this.istream.readLong();
+    private static long getUnsigned(byte[] bytes, int offset, int width) {
+      return getLong(bytes, offset, width) & (-1L >>> (64 - 8 * width));
     }
 
-    private final Float decodeFloat32() throws IOException {
-      return this.istream.readFloat();
+    private final int index(String key) {
+      final Integer index = this.indexes.get(key);
+      if (index == null) {
+        throw new IllegalArgumentException("MPack: no column named " + key);
+      }
+      return index;
     }
 
-    private final Double decodeFloat64() throws IOException {
-      return this.istream.readDouble();
+    // Returns the column as a long[], double[], boolean[], String[] or Object[]
+    // depending on the type of its values.
+    public final Object column(String key) throws IOException {
+      return this.column(this.index(key));
     }
 
-    private final String decodeFixStr(int tag) throws IOException {
-      final int length = tag & ~FIXSTR;
-      final byte[] bytes = new byte[length];
-      this.istream.readFully(bytes);
-      return new String(bytes, "UTF-8");
+    private final Object column(int index) throws IOException {
+      Object column = this.columns[index];
+      if (column == null) {
+        column = this.decodeColumn(index);
+        this.columns[index] = column;
+      }
+      return column;
     }
 
-    private final String decodeString(int length) throws IOException {
-      final byte[] bytes = new byte[length];
-      this.istream.readFully(bytes);
-      return new String(bytes, "UTF-8");
+    private final Object decodeColumn(int index) throws IOException {
+      final int offset = this.offsets[index];
+      final List<?> column = (List<?>) decode(new ByteArrayInputStream(this.data, offset, this.offsets[index + 1] - offset));
+      final int kind = ((Number) column.get(0)).intValue();
+      switch (kind) {
+      case INTEGERS: {
+        final int width = ((Number) column.get(1)).intValue();
+        final byte[] bytes = (byte[]) column.get(2);
+        final long[] values = new long[this.size];
+        for (int i = 0; i != values.length; ++i) {
+          values[i] = getLong(bytes, i * width, width);
+        }
+        return values;
+      }
+
+      case DOUBLES: {
+        final byte[] bytes = (byte[]) column.get(1);
+        final double[] values = new double[this.size];
+        for (int i = 0; i != values.length; ++i) {
+          values[i] = Double.longBitsToDouble(getLong(bytes, 8 * i, 8));
+        }
+        return values;
+      }
+
+      case BOOLEANS: {
+        final byte[] bytes = (byte[]) column.get(1);
+        final boolean[] values = new boolean[this.size];
+        for (int i = 0; i != values.length; ++i) {
+          values[i] = bytes[i] != 0;
+        }
+        return values;
+      }
+
+      case STRINGS: {
+        final List<?> dictionary = (List<?>) column.get(1);
+        final byte[] bytes = (byte[]) column.get(2);
+        final int width = bytes.length / Math.max(1, this.size);
+        final String[] values = new String[this.size];
+        for (int i = 0; i != values.length; ++i) {
+          values[i] = (String) dictionary.get((int) getUnsigned(bytes, i * width, width));
+        }
+        return values;
+      }
+
+      case OBJECTS:
+        return ((List<?>) column.get(1)).toArray();
+
+      default:
+        throw new IOException("MPack: unknown column kind: " + kind);
+      }
     }
 
-    private final String decodeStr8() throws IOException {
-      return this.decodeString(this.istream.readUnsignedByte());
+    public final long[] longs(String key) throws IOException {
+      return (long[]) this.column(key);
     }
 
-    private final String decodeStr16() throws IOException {
-      return this.decodeString(this.istream.readUnsignedShort());
+    public final double[] doubles(String key) throws IOException {
+      return (double[]) this.column(key);
     }
 
-    private final String decodeStr32() throws IOException {
-      return this.decodeString(this.istream.readInt());
+    public final boolean[] booleans(String key) throws IOException {
+      return (boolean[]) this.column(key);
     }
 
-    private final byte[] decodeBinary(int length) throws IOException {
-      final byte[] bytes = new byte[length];
-      this.istream.readFully(bytes);
-      return bytes;
+    public final String[] strings(String key) throws IOException {
+      return (String[]) this.column(key);
     }
 
-    private final byte[] decodeBin8() throws IOException {
-      return this.decodeBinary(this.istream.readUnsignedByte());
+    public final Object get(int row, String key) throws IOException {
+      return this.get(row, this.index(key));
     }
 
-    private final byte[] decodeBin16() throws IOException {
-      return this.decodeBinary(this.istream.readUnsignedShort());
+    // Tells whether the record had the key, columns hold a zero (or null)
+    // for the records that didn't.
+    public final boolean contains(int row, String key) {
+      final Integer index = this.indexes.get(key);
+      return index != null && this.contains(row, (int) index);
     }
 
-    private final byte[] decodeBin32() throws IOException {
-      return this.decodeBinary(this.istream.readInt());
+    private final boolean contains(int row, int index) {
+      final byte[] bitmap = this.presence[index];
+      return bitmap == null || isSet(bitmap, row);
     }
 
-    private final List<?> decodeArray(int length) throws IOException {
-      final ArrayList<Object> array = new ArrayList<Object>(length);
-      while (length-- != 0) {
-        array.add(this.decode());
+    private final Object get(int row, int index) throws IOException {
+      final Object column = this.column(index);
+      if (column instanceof long[]) {
+        return ((long[]) column)[row];
       }
-      return array;
+      if (column instanceof double[]) {
+        return ((double[]) column)[row];
+      }
+      if (column instanceof boolean[]) {
+        return ((boolean[]) column)[row];
+      }
+      return ((Object[]) column)[row];
     }
 
-    private final List<?> decodeFixArray(int tag) throws IOException {
-      return this.decodeArray(tag & ~FIXARRAY);
-    }
+    // Returns a read-only view of a record, its values are read from the
+    // columns (decoding them if needed) when accessed.
+    public final Map<String, Object> row(final int row) {
+      if (row < 0 || row >= this.size) {
+        throw new IndexOutOfBoundsException("MPack: no row at index " + row);
+      }
+      return new AbstractMap<String, Object>() {
+        @Override
+        public Object get(Object key) {
+          final Integer index = Columns.this.indexes.get(key);
+          return (index == null || !Columns.this.contains(row, (int) index)) ? null : this.value(index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+          final Integer index = Columns.this.indexes.get(key);
+          return index != null && Columns.this.contains(row, (int) index);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+          return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public int size() {
+              int size = 0;
+              for (int i = 0; i != Columns.this.keys.size(); ++i) {
+                size += Columns.this.contains(row, i) ? 1 : 0;
+              }
+              return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+              return new Iterator<Map.Entry<String, Object>>() {
+                private int index = this.advance(0);
+
+                private int advance(int index) {
+                  while (index != Columns.this.keys.size() && !Columns.this.contains(row, index)) {
+                    ++index;
+                  }
+                  return index;
+                }
+
+                public boolean hasNext() {
+                  return this.index != Columns.this.keys.size();
+                }
+
+                public Map.Entry<String, Object> next() {
+                  if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                  }
+                  final int index = this.index;
+                  this.index = this.advance(index + 1);
+                  return new AbstractMap.SimpleImmutableEntry<String, Object>(Columns.this.keys.get(index), value(index));
+                }
+              };
+            }
+          };
+        }
 
-    private final List<?> decodeArray16() throws IOException {
-      return this.decodeArray(this.istream.readUnsignedShort());
+        private Object value(int index) {
+          try {
+            return Columns.this.get(row, index);
+          }
+          catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
     }
 
-    private final List<?> decodeArray32() throws IOException {
-      return this.decodeArray(this.istream.readInt());
+    public final List<Map<String, Object>> rows() {
+      return new AbstractList<Map<String, Object>>() {
+        @Override
+        public Map<String, Object> get(int index) {
+          return Columns.this.row(index);
+        }
+
+        @Override
+        public int size() {
+          return Columns.this.size;
+        }
+      };
     }
+  }
 
-    private final Map<?, ?> decodeMap(int length) throws IOException {
-      final HashMap<Object, Object> map = new HashMap<Object, Object>();
-      while (length-- != 0) {
-        final Object key = this.decode();
-        final Object val = this.decode();
-        map.put(key, val);
-      }
-      return map;
+  // Holds the UTF-8 bytes of a string value and only decodes them when the
+  // characters are needed. Equality and hashing work on the bytes, so an
+  // Utf8String is only ever equal to another Utf8String, and encoders write
+  // the bytes back as they are.
+  public static final class Utf8String implements CharSequence {
+    private final byte[] bytes;
+    private String string;
+    private int hash;
+
+    public Utf8String(byte[] bytes) {
+      this.bytes = bytes;
     }
 
-    private final Map<?, ?> decodeFixMap(int tag) throws IOException {
-      return this.decodeMap(tag & ~FIXMAP);
+    public Utf8String(String string) {
+      this.bytes = string.getBytes(StandardCharsets.UTF_8);
+      this.string = string;
     }
 
-    private final Map<?, ?> decodeMap16() throws IOException {
-      return this.decodeMap(this.istream.readUnsignedShort());
+    public final byte[] getBytes() {
+      return this.bytes.clone();
     }
 
-    private final Map<?, ?> decodeMap32() throws IOException {
-      return this.decodeMap(this.istream.readInt());
+    public final int byteLength() {
+      return this.bytes.length;
     }
 
-    private final Extended decodeExtended(int length) throws IOException {
-      final byte[] data = new byte[length];
-      final int type = this.istream.readUnsignedByte();
-      this.istream.readFully(data);
-      return new Extended(type, data);
+    public final int length() {
+      return this.toString().length();
     }
 
-    private final Extended decodeFixExt1() throws IOException {
-      return this.decodeExtended(1);
+    public final char charAt(int index) {
+      return this.toString().charAt(index);
     }
 
-    private final Extended decodeFixExt2() throws IOException {
-      return this.decodeExtended(2);
+    public final CharSequence subSequence(int start, int end) {
+      return this.toString().subSequence(start, end);
     }
 
-    private final Extended decodeFixExt4() throws IOException {
-      return this.decodeExtended(4);
+    @Override
+    public final String toString() {
+      if (this.string == null) {
+        this.string = new String(this.bytes, StandardCharsets.UTF_8);
+      }
+      return this.string;
     }
 
-    private final Extended decodeFixExt8() throws IOException {
-      return this.decodeExtended(8);
+    @Override
+    public final boolean equals(Object object) {
+      return (object instanceof Utf8String) && Arrays.equals(this.bytes, ((Utf8String) object).bytes);
     }
 
-    private final Extended decodeFixExt16() throws IOException {
-      return this.decodeExtended(16);
+    @Override
+    public final int hashCode() {
+      int hash = this.hash;
+      if (hash == 0) {
+        hash = Arrays.hashCode(this.bytes);
+        this.hash = hash;
+      }
+      return hash;
     }
+  }
+
+  // Holds the bytes of an already encoded value, which encoders copy to their
+  // output as they are. Nothing checks that the bytes encode exactly one
+  // value, so Raw instances should come from MPack.encodeRaw. Encoders with
+  // string references enabled decode and encode the value again instead,
+  // since decoders count the strings it contains.
+  public static final class Raw {
+    private final byte[] bytes;
 
-    private final Extended decodeExt8() throws IOException {
-      return this.decodeExtended(this.istream.readUnsignedByte());
+    public Raw(byte[] bytes) {
+      this.bytes = bytes;
     }
 
-    private final Extended decodeExt16() throws IOException {
-      return this.decodeExtended(this.istream.readUnsignedShort());
+    public final byte[] getBytes() {
+      return this.bytes.clone();
     }
 
-    private final Extended decodeExt32() throws IOException {
-      return this.decodeExtended(this.istream.readInt());
+    public final int size() {
+      return this.bytes.length;
     }
 
-    public final Object decode() throws IOException {
-      final int tag = this.istream.readUnsignedByte();
+    @Override
+    public final boolean equals(Object object) {
+      return (object instanceof Raw) && Arrays.equals(this.bytes, ((Raw) object).bytes);
+    }
 
-      if ((tag & 0x80) == FIXNUM.POSITIVE) {
-        return this.decodePositiveFixnum(tag);
-      }
+    @Override
+    public final int hashCode() {
+      return Arrays.hashCode(this.bytes);
+    }
+  }
 
-      if ((tag & 0xE0) == FIXNUM.NEGATIVE) {
-        return this.decodeNegativeFixnum(tag);
+  // Applies edits to an encoded message without decoding it: untouched values
+  // are copied as they are and only the edited values and the headers of the
+  // containers they belong to are written again. Paths are lists of map keys
+  // and array indexes leading from the root value to the edited value.
+  public static class Patch {
+    private static class Edit {
+      private byte[] value;
+      private boolean delete;
+      private final LinkedHashMap<Object, Edit> children = new LinkedHashMap<Object, Edit>();
+      private final ArrayList<byte[]> appends = new ArrayList<byte[]>();
+
+      private final boolean isLeaf() {
+        return this.value != null || this.delete;
       }
+    }
 
-      if ((tag & 0xE0) == FIXSTR) {
-        return this.decodeFixStr(tag);
-      }
+    private final Edit root = new Edit();
 
-      if ((tag & 0xF0) == FIXARRAY) {
-        return this.decodeFixArray(tag);
+    private static Object normalize(Object key) {
+      if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+        return ((Number) key).longValue();
       }
+      return key;
+    }
 
-      if ((tag & 0xF0) == FIXMAP) {
-        return this.decodeFixMap(tag);
+    private final Edit edit(List<?> path, int length) {
+      Edit edit = this.root;
+      for (int i = 0; i != length; ++i) {
+        if (edit.isLeaf()) {
+          throw new IllegalArgumentException("MPack: patch path goes through a replaced value: " + path);
+        }
+        final Object key = normalize(path.get(i));
+        Edit child = edit.children.get(key);
+        if (child == null) {
+          child = new Edit();
+          edit.children.put(key, child);
+        }
+        edit = child;
       }
+      return edit;
+    }
 
-      switch (tag) {
-      case NIL:
-        return null;
-
-      case TRUE:
-        return true;
+    public final Patch set(List<?> path, Object value) throws IOException {
+      final Edit edit = this.edit(path, path.size());
+      edit.value = encode(value);
+      edit.delete = false;
+      edit.children.clear();
+      edit.appends.clear();
+      return this;
+    }
 
-      case FALSE:
-        return false;
+    public final Patch delete(List<?> path) {
+      if (path.isEmpty()) {
+        throw new IllegalArgumentException("MPack: cannot delete the root value");
+      }
+      final Edit edit = this.edit(path, path.size());
+      edit.value = null;
+      edit.delete = true;
+      edit.children.clear();
+      edit.appends.clear();
+      return this;
+    }
 
-      case UINT8:
-        return this.decodeUint8();
+    public final Patch append(List<?> path, Object value) throws IOException {
+      final Edit edit = this.edit(path, path.size());
+      if (edit.isLeaf()) {
+        throw new IllegalArgumentException("MPack: cannot append to a replaced value: " + path);
+      }
+      edit.appends.add(encode(value));
+      return this;
+    }
 
-      case UINT16:
-        return this.decodeUint16();
+    public final byte[] apply(byte[] bytes) throws IOException {
+      final Buffer buffer = new Buffer(bytes.length + 64);
+      final Encoder encoder = new Encoder(buffer);
+      if (rewrite(bytes, 0, bytes.length, this.root, encoder) < 0) {
+        throw new EOFException("MPack: truncated message");
+      }
+      return buffer.toByteArray();
+    }
 
-      case UINT32:
-        return this.decodeUint32();
+    // Untouched values are copied to encoder.ostream, which an encoder with
+    // string references wouldn't count, so those are refused.
+    private static int rewrite(byte[] bytes, int offset, int end, Edit edit, Encoder encoder) throws IOException {
+      if (encoder.strings != null) {
+        throw new IllegalStateException("MPack: cannot patch through an encoder with string references");
+      }
+      if (edit.value != null) {
+        encoder.ostream.write(edit.value);
+        return skip(bytes, offset, end);
+      }
+      final int next = skip(bytes, offset, end);
+      if (next < 0) {
+        return -1;
+      }
+      if (edit.children.isEmpty() && edit.appends.isEmpty()) {
+        encoder.ostream.write(bytes, offset, next - offset);
+        return next;
+      }
+      final long header = header(bytes, offset, end);
+      switch (headerKind(header)) {
+      case HEADER.ARRAY:
+        rewriteArray(bytes, offset + headerSize(header), end, (int) headerLength(header), edit, encoder);
+        return next;
 
-      case UINT64:
-        return this.decodeUint64();
+      case HEADER.MAP:
+        rewriteMap(bytes, offset + headerSize(header), end, (int) headerLength(header), edit, encoder);
+        return next;
 
-      case INT8:
-        return this.decodeInt8();
+      default:
+        throw new IOException("MPack: patch path goes through a value that isn't a container");
+      }
+    }
 
-      case INT16:
-        return this.decodeInt16();
+    private static void rewriteArray(byte[] bytes, int offset, int end, int count, Edit edit, Encoder encoder) throws IOException {
+      int length = count + edit.appends.size();
+      for (Map.Entry<Object, Edit> entry : edit.children.entrySet()) {
+        final Object key = entry.getKey();
+        if (!(key instanceof Long) || (Long) key < 0L || (Long) key >= count) {
+          throw new IOException("MPack: patch path has no array element at index " + key);
+        }
+        if (entry.getValue().delete) {
+          --length;
+        }
+      }
+      encoder.encodeArrayHeader(length);
+      int copied = offset;
+      for (int i = 0; i != count; ++i) {
+        final int next = skip(bytes, offset, end);
+        final Edit child = edit.children.get((long) i);
+        if (child != null) {
+          encoder.ostream.write(bytes, copied, offset - copied);
+          if (!child.delete) {
+            rewrite(bytes, offset, end, child, encoder);
+          }
+          copied = next;
+        }
+        offset = next;
+      }
+      encoder.ostream.write(bytes, copied, offset - copied);
+      for (byte[] value : edit.appends) {
+        encoder.ostream.write(value);
+      }
+    }
 
-      case INT32:
-        return this.decodeInt32();
+    private static void rewriteMap(byte[] bytes, int offset, int end, int count, Edit edit, Encoder encoder) throws IOException {
+      if (!edit.appends.isEmpty()) {
+        throw new IOException("MPack: cannot append to a map");
+      }
+      // Keys that aren't in the map are added in the order they were edited.
+      final LinkedHashMap<Object, Edit> missing = new LinkedHashMap<Object, Edit>(edit.children);
+      int length = count;
+      int position = offset;
+      for (int i = 0; i != count; ++i) {
+        final int value = skip(bytes, position, end);
+        final Edit child = missing.remove(normalize(decode(new ByteArrayInputStream(bytes, position, value - position))));
+        if (child != null && child.delete) {
+          --length;
+        }
+        position = skip(bytes, value, end);
+      }
+      for (Map.Entry<Object, Edit> entry : missing.entrySet()) {
+        if (entry.getValue().value == null && !entry.getValue().delete) {
+          throw new IOException("MPack: patch path has no map entry for key " + entry.getKey());
+        }
+        if (entry.getValue().value != null) {
+          ++length;
+        }
+      }
+      encoder.encodeMapHeader(length);
+      int copied = offset;
+      for (int i = 0; i != count; ++i) {
+        final int value = skip(bytes, offset, end);
+        final int next = skip(bytes, value, end);
+        final Edit child = edit.children.get(normalize(decode(new ByteArrayInputStream(bytes, offset, value - offset))));
+        if (child != null) {
+          if (child.delete) {
+            encoder.ostream.write(bytes, copied, offset - copied);
+          }
+          else {
+            encoder.ostream.write(bytes, copied, value - copied);
+            rewrite(bytes, value, end, child, encoder);
+          }
+          copied = next;
+        }
+        offset = next;
+      }
+      encoder.ostream.write(bytes, copied, offset - copied);
+      for (Map.Entry<Object, Edit> entry : missing.entrySet()) {
+        if (entry.getValue().value != null) {
+          encoder.encode(entry.getKey());
+          encoder.ostream.write(entry.getValue().value);
+        }
+      }
+    }
+  }
 
-      case INT64:
-        return this.decodeInt64();
+  public static class Metrics {
+    public static final int NIL      = 0;
+    public static final int BOOLEAN  = 1;
+    public static final int INTEGER  = 2;
+    public static final int FLOAT    = 3;
+    public static final int STRING   = 4;
+    public static final int BINARY   = 5;
+    public static final int ARRAY    = 6;
+    public static final int MAP      = 7;
+    public static final int EXTENDED = 8;
+
+    // Counters are indexed by the type families above, histograms by the
+    // number of significant bits of the sampled value (bucket n counts values
+    // in the range [2^(n-1); 2^n - 1]) and depths are capped to 32 levels.
+    public final long[] values = new long[9];
+    public final long[] payloadBytes = new long[9];
+    public final long[] containerSizes = new long[34];
+    public final long[] messageDepths = new long[33];
+    public long messages;
+    public long bytes;
+    public long nanos;
+    public long events;
+
+    // Messages that take at least slowNanos to encode or decode, or that are
+    // at least largeBytes long, are reported as JDK Flight Recorder events.
+    public long slowNanos = Long.MAX_VALUE;
+    public long largeBytes = Long.MAX_VALUE;
+
+    private int depth;
+    private int maxDepth;
+    private long mark;
+
+    public Metrics() { }
+
+    public Metrics(long slowNanos, long largeBytes) {
+      this.slowNanos = slowNanos;
+      this.largeBytes = largeBytes;
+    }
 
+    public static int family(int tag) {
+      if ((tag & 0x80) == FIXNUM.POSITIVE || (tag & 0xE0) == FIXNUM.NEGATIVE) {
+        return INTEGER;
+      }
+      if ((tag & 0xE0) == FIXSTR) {
+        return STRING;
+      }
+      if ((tag & 0xF0) == FIXARRAY) {
+        return ARRAY;
+      }
+      if ((tag & 0xF0) == FIXMAP) {
+        return MAP;
+      }
+      switch (tag) {
+      case MPack.NIL:
+        return NIL;
+      case TRUE:
+      case FALSE:
+        return BOOLEAN;
       case FLOAT32:
-        return this.decodeFloat32();
-
       case FLOAT64:
-        return this.decodeFloat64();
-
+        return FLOAT;
       case STR8:
-        return this.decodeStr8();
-
       case STR16:
-        return this.decodeStr16();
-
       case STR32:
-        return this.decodeStr32();
-
+        return STRING;
       case BIN8:
-        return this.decodeBin8();
-
       case BIN16:
-        return this.decodeBin16();
-
       case BIN32:
-        return this.decodeBin32();
-
+        return BINARY;
       case ARRAY16:
-        return this.decodeArray16();
-
       case ARRAY32:
-        return this.decodeArray32();
-
+        return ARRAY;
       case MAP16:
-        return this.decodeMap16();
-
       case MAP32:
-        return this.decodeMap32();
-
+        return MAP;
       case FIXEXT1:
-        return this.decodeFixExt1();
-
       case FIXEXT2:
-        return this.decodeFixExt2();
-
       case FIXEXT4:
-        return this.decodeFixExt4();
-
       case FIXEXT8:
-        return this.decodeFixExt8();
-
       case FIXEXT16:
-        return this.decodeFixExt16();
-
       case EXT8:
-        return this.decodeExt8();
-
       case EXT16:
-        return this.decodeExt16();
-
       case EXT32:
-        return this.decodeExt32();
-
+        return EXTENDED;
+      case UINT8:
+      case UINT16:
+      case UINT32:
+      case UINT64:
+      case INT8:
+      case INT16:
+      case INT32:
+      case INT64:
+        return INTEGER;
       default:
-        throw new IOException("MPack: decoder found unknown tag: " + tag);
+        throw new IllegalArgumentException("MPack: unknown tag: " + tag);
       }
     }
 
-    public final boolean decodeBoolean() throws IOException {
-      return (Boolean) this.decode();
+    public static int bucket(long value) {
+      return 64 - Long.numberOfLeadingZeros(value);
     }
 
-    public final byte decodeByte() throws IOException {
-      return this.decodeNumber().byteValue();
+    public final long count() {
+      long count = 0L;
+      for (long n : this.values) {
+        count += n;
+      }
+      return count;
     }
 
-    public final short decodeShort() throws IOException {
-      return this.decodeNumber().shortValue();
+    private final void value(int family) {
+      ++this.values[family];
     }
 
-    public final int decodeInt() throws IOException {
-      return this.decodeNumber().intValue();
+    private final void payload(int family, long length) {
+      this.payloadBytes[family] += length;
     }
 
-    public final long decodeLong() throws IOException {
-      return this.decodeNumber().longValue();
+    private final void enter(long size) {
+      ++this.containerSizes[bucket(size)];
+      if (++this.depth > this.maxDepth) {
+        this.maxDepth = this.depth;
+      }
     }
 
-    public final float decodeFloat() throws IOException {
-      return this.decodeNumber().floatValue();
+    private final void leave() {
+      --this.depth;
     }
 
-    public final double decodeDouble() throws IOException {
-      return this.decodeNumber().doubleValue();
+    private final long begin() {
+      this.depth = 0;
+      this.maxDepth = 0;
+      this.mark = this.bytes;
+      return System.nanoTime();
     }
 
-    public final Number decodeNumber() throws IOException {
-      return (Number) this.decode();
+    private final void end(String operation, long start) {
+      final long elapsed = System.nanoTime() - start;
+      final long size = this.bytes - this.mark;
+      ++this.messages;
+      ++this.messageDepths[Math.min(this.maxDepth, 32)];
+      this.nanos += elapsed;
+      if (elapsed >= this.slowNanos || size >= this.largeBytes) {
+        final MessageEvent event = new MessageEvent();
+        event.operation = operation;
+        event.elapsed = elapsed;
+        event.bytes = size;
+        event.depth = this.maxDepth;
+        event.commit();
+        ++this.events;
+      }
     }
+  }
 
-    public final String decodeString() throws IOException {
-      return (String) this.decode();
+  // Learns the size of the messages encoded at a call site, or of a type of
+  // messages, to start their buffers at a size they will likely fit in. One
+  // message out of sampleRate is recorded in a histogram of power of two size
+  // classes (same buckets as Metrics) and buffers are sized for the class
+  // that quantile of the recorded messages fit in. Counts are halved every
+  // 65536 samples so the size follows changes of the traffic.
+  public static class Sizer {
+    public static final int MIN_BUFFER_SIZE = 32;
+    public static final int MAX_BUFFER_SIZE = 1 << 30;
+
+    private final long[] sizes = new long[64];
+    private final int sampleRate;
+    private final double quantile;
+    private final AtomicLong calls = new AtomicLong();
+    private long samples;
+    private volatile int bufferSize = MIN_BUFFER_SIZE;
+
+    public Sizer() {
+      this(16, 0.9);
     }
 
-    public final byte[] decodeBinary() throws IOException {
-      return (byte[]) this.decode();
+    public Sizer(int sampleRate, double quantile) {
+      if (sampleRate <= 0 || quantile <= 0.0 || quantile > 1.0) {
+        throw new IllegalArgumentException("MPack: invalid sizer settings");
+      }
+      this.sampleRate = sampleRate;
+      this.quantile = quantile;
     }
 
-    public final Extended decodeExtended() throws IOException {
-      return (Extended) this.decode();
+    public final int bufferSize() {
+      return this.bufferSize;
     }
 
-    @SuppressWarnings("unchecked")
-    public final <T> List<T> decodeList(Class<T> elementClass) throws IOException {
-      final List<?> list = (List) this.decode();
-      for (Object obj : list) {
-        if (!elementClass.isAssignableFrom(obj.getClass())) {
-          throw new ClassCastException("unexpected type found while decoding list: " + obj.getClass().toString());
-        }
+    public final void sample(long size) {
+      if (this.calls.getAndIncrement() % this.sampleRate == 0L) {
+        this.record(size);
       }
-      return (List<T>) list;
     }
 
-    @SuppressWarnings("unchecked")
-    public final <K, V> Map<K, V> decodeMap(Class<K> keyClass, Class<V> valueClass) throws IOException {
-      final Map<?, ?> map = (Map) this.decode();
-      for (Map.Entry<?, ?> entry : map.entrySet()) {
-        final Object key = entry.getKey();
-        final Object value = entry.getValue();
-        if (!keyClass.isAssignableFrom(key.getClass())) {
-          throw new ClassCastException("unexpected type found while decoding map key: " + key.getClass().toString());
-        }
-        if (!valueClass.isAssignableFrom(value.getClass())) {
-          throw new ClassCastException("unexpected type found while decoding map value: " + value.getClass().toString());
+    public final synchronized void record(long size) {
+      ++this.sizes[Metrics.bucket(size)];
+      if (++this.samples == 65536L) {
+        this.samples = 0L;
+        for (int i = 0; i != this.sizes.length; ++i) {
+          this.samples += (this.sizes[i] >>>= 1);
         }
       }
-      return (Map<K, V>) map;
+      final double target = this.quantile * this.samples;
+      long count = 0L;
+      int bucket = 0;
+      while ((count += this.sizes[bucket]) < target) {
+        ++bucket;
+      }
+      this.bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, 1L << bucket));
+    }
+
+    public final synchronized long[] histogram() {
+      return this.sizes.clone();
     }
   }
 
-  public static class Encoder {
-    public final DataOutputStream ostream;
+  @Name("mpack.Message")
+  @Label("MessagePack Message")
+  @Category("MPack")
+  @Description("Encoding or decoding of a message that exceeded the configured duration or size")
+  static class MessageEvent extends Event {
+    @Label("Operation")
+    String operation;
 
-    public Encoder(OutputStream ostream) {
-      this.ostream = new DataOutputStream(ostream);
-    }
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
 
-    private final void encodeNil() throws IOException {
-      this.ostream.writeByte(NIL);
-    }
+    @Label("Size")
+    @DataAmount
+    long bytes;
 
-    private final void encodeTrue() throws IOException {
-      this.ostream.writeByte(TRUE);
-    }
+    @Label("Depth")
+    int depth;
+  }
 
-    private final void encodeFalse() throws IOException {
-      this.ostream.writeByte(FALSE);
+  private static class CountingInputStream extends FilterInputStream {
+    private final Metrics metrics;
+
+    CountingInputStream(InputStream istream, Metrics metrics) {
+      super(istream);
+      this.metrics = metrics;
     }
 
-    private final void encodePositiveFixnum(long object) throws IOException {
-      this.ostream.writeByte((int) object);
+    @Override
+    public int read() throws IOException {
+      final int b = this.in.read();
+      if (b >= 0) {
+        ++this.metrics.bytes;
+      }
+      return b;
     }
 
-    private final void encodeNegativeFixnum(long object) throws IOException {
-      this.ostream.writeByte((int) object);
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int n = this.in.read(b, off, len);
+      if (n > 0) {
+        this.metrics.bytes += n;
+      }
+      return n;
     }
 
-    private final void encodeUint8(long object) throws IOException {
-      this.ostream.writeByte(UINT8);
-      this.ostream.writeByte((int) object);
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = this.in.skip(n);
+      this.metrics.bytes += skipped;
+      return skipped;
     }
+  }
 
-    private final void encodeUint16(long object) throws IOException {
-      this.ostream.writeByte(UINT16);
-      this.ostream.writeShort((int) object);
+  private static class CountingOutputStream extends FilterOutputStream {
+    private final Metrics metrics;
+
+    CountingOutputStream(OutputStream ostream, Metrics metrics) {
+      super(ostream);
+      this.metrics = metrics;
     }
 
-    private final void encodeUint32(long object) throws IOException {
-      this.ostream.writeByte(UINT32);
-      this.ostream.writeInt((int) object);
+    @Override
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      ++this.metrics.bytes;
     }
 
-    private final void encodeUint64(long object) throws IOException {
-      this.ostream.writeByte(UINT64);
-      this.ostream.writeLong(object);
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.out.write(b, off, len);
+      this.metrics.bytes += len;
     }
+  }
 
-    private final void encodeInt8(long object) throws IOException {
-      this.ostream.writeByte(INT8);
-      this.ostream.writeByte((int) object);
+  private static class Buffer extends ByteArrayOutputStream {
+    Buffer(int size) {
+      super(size);
     }
 
-    private final void encodeInt16(long object) throws IOException {
-      this.ostream.writeByte(INT16);
-      this.ostream.writeShort((int) object);
+    final byte[] array() {
+      return this.buf;
     }
 
-    private final void encodeInt32(long object) throws IOException {
-      this.ostream.writeByte(INT32);
-      this.ostream.writeInt((int) object);
+    final void putInt(int offset, int value) {
+      this.buf[offset]     = (byte) (value >>> 24);
+      this.buf[offset + 1] = (byte) (value >>> 16);
+      this.buf[offset + 2] = (byte) (value >>> 8);
+      this.buf[offset + 3] = (byte) value;
     }
+  }
 
-    private final void encodeInt64(long object) throws IOException {
-      this.ostream.writeByte(INT64);
-      this.ostream.writeLong(object);
+  // Reads a heap or direct buffer from its position. Decoders read the
+  // scalars of big-endian buffers with getShort, getInt, ... directly.
+  public static class BufferInputStream extends InputStream {
+    public final ByteBuffer buffer;
+
+    public BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
     }
 
-    private final void encodeFloat32(float object) throws IOException {
-      this.ostream.writeByte(FLOAT32);
-      this.ostream.writeFloat(object);
+    @Override
+    public int read() {
+      return this.buffer.hasRemaining() ? (this.buffer.get() & 0xFF) : -1;
     }
 
-    private final void encodeFloat64(double object) throws IOException {
-      this.ostream.writeByte(FLOAT64);
-      this.ostream.writeDouble(object);
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, this.buffer.remaining());
+      this.buffer.get(b, off, len);
+      return len;
     }
 
-    private final void encodeFixStr(byte[] object) throws IOException {
-      this.ostream.writeByte(FIXSTR | object.length);
-      this.ostream.write(object);
+    @Override
+    public long skip(long n) {
+      final int k = (int) Math.max(0L, Math.min(n, this.buffer.remaining()));
+      this.buffer.position(this.buffer.position() + k);
+      return k;
     }
 
-    private final void encodeStr8(byte[] object) throws IOException {
-      this.ostream.writeByte(STR8);
-      this.ostream.writeByte(object.length);
-      this.ostream.write(object);
+    @Override
+    public int available() {
+      return this.buffer.remaining();
     }
+  }
 
-    private final void encodeStr16(byte[] object) throws IOException {
-      this.ostream.writeByte(STR16);
-      this.ostream.writeShort(object.length);
-      this.ostream.write(object);
+  // Reads the payload of a str or bin value straight from the stream of the
+  // decoder, so values of any size up to 4 GiB can be transferred without
+  // being held in memory. The payload has to be read or the stream closed,
+  // which skips what is left of it, before decoding the next value.
+  public static class PayloadInputStream extends InputStream {
+    public final long length;
+    private final InputStream istream;
+    private long remaining;
+
+    private PayloadInputStream(InputStream istream, long length) {
+      this.istream = istream;
+      this.length = length;
+      this.remaining = length;
     }
 
-    private final void encodeStr32(byte[] object) throws IOException {
-      this.ostream.writeByte(STR32);
-      this.ostream.writeInt(object.length);
-      this.ostream.write(object);
+    public final long remaining() {
+      return this.remaining;
     }
 
-    private final void encodeBin8(byte[] object) throws IOException {
-      this.ostream.writeByte(BIN8);
-      this.ostream.writeByte(object.length);
-      this.ostream.write(object);
+    @Override
+    public int read() throws IOException {
+      if (this.remaining == 0L) {
+        return -1;
+      }
+      final int b = this.istream.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      --this.remaining;
+      return b;
     }
 
-    private final void encodeBin16(byte[] object) throws IOException {
-      this.ostream.writeByte(BIN16);
-      this.ostream.writeShort(object.length);
-      this.ostream.write(object);
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (this.remaining == 0L) {
+        return -1;
+      }
+      final int n = this.istream.read(b, off, (int) Math.min(len, this.remaining));
+      if (n < 0) {
+        throw new EOFException();
+      }
+      this.remaining -= n;
+      return n;
     }
 
-    private final void encodeBin32(byte[] object) throws IOException {
-      this.ostream.writeByte(BIN32);
-      this.ostream.writeInt(object.length);
-      this.ostream.write(object);
+    @Override
+    public long skip(long n) throws IOException {
+      final long k = this.istream.skip(Math.max(0L, Math.min(n, this.remaining)));
+      this.remaining -= k;
+      return k;
     }
 
-    private final void encodeFixArray(int length) throws IOException {
-      this.ostream.writeByte(FIXARRAY | length);
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(this.istream.available(), this.remaining);
     }
 
-    private final void encodeArray16(int length) throws IOException {
-      this.ostream.writeByte(ARRAY16);
-      this.ostream.writeShort(length);
+    @Override
+    public void close() throws IOException {
+      while (this.remaining != 0L) {
+        if (this.skip(this.remaining) == 0L && this.read() < 0) {
+          throw new EOFException();
+        }
+      }
     }
+  }
 
-    private final void encodeArray32(int length) throws IOException {
-      this.ostream.writeByte(ARRAY32);
-      this.ostream.writeInt(length);
+  // Reads the content of a sequence of buffers as one stream, so a message
+  // received in several buffers can be decoded without joining them first.
+  // Decoders read scalars straight from the current buffer with getInt,
+  // getLong, ... and only assemble them byte by byte when they straddle the
+  // boundary between two buffers. The buffers are duplicated (and so read
+  // as big-endian), their positions are left untouched.
+  public static class CompositeInputStream extends InputStream {
+    private final ByteBuffer[] buffers;
+    private int index;
+
+    public CompositeInputStream(List<ByteBuffer> buffers) {
+      this.buffers = new ByteBuffer[buffers.size()];
+      for (int i = 0; i != this.buffers.length; ++i) {
+        this.buffers[i] = buffers.get(i).duplicate();
+      }
     }
 
-    private final void encodeFixMap(int length) throws IOException {
-      this.ostream.writeByte(FIXMAP | length);
+    // Reads the buffer of a BufferInputStream in place, sharing its position.
+    private CompositeInputStream(ByteBuffer buffer) {
+      this.buffers = new ByteBuffer[] { buffer };
     }
 
-    private final void encodeMap16(int length) throws IOException {
-      this.ostream.writeByte(MAP16);
-      this.ostream.writeShort(length);
+    private final ByteBuffer current() {
+      while (this.index != this.buffers.length && !this.buffers[this.index].hasRemaining()) {
+        ++this.index;
+      }
+      return (this.index == this.buffers.length) ? null : this.buffers[this.index];
     }
 
-    private final void encodeMap32(int length) throws IOException {
-      this.ostream.writeByte(MAP32);
-      this.ostream.writeInt(length);
+    @Override
+    public int read() {
+      final ByteBuffer buffer = this.current();
+      return (buffer == null) ? -1 : (buffer.get() & 0xFF);
     }
 
-    private final void encodeBoolean(boolean object) throws IOException {
-      if (object) {
-        this.encodeTrue();
+    private final int readUnsignedByte() throws EOFException {
+      final ByteBuffer buffer = this.current();
+      if (buffer == null) {
+        throw new EOFException();
       }
-      else {
-        this.encodeFalse();
+      return buffer.get() & 0xFF;
+    }
+
+    // Slow path for values that span two or more buffers.
+    private final long readSpanning(int size) throws EOFException {
+      long value = 0L;
+      for (int i = 0; i != size; ++i) {
+        value = (value << 8) | this.readUnsignedByte();
       }
+      return value;
     }
 
-    private final void encodeInteger(byte object) throws IOException {
-      this.encodeInteger((long) object);
+    private final short readShort() throws EOFException {
+      final ByteBuffer buffer = this.current();
+      return (buffer != null && buffer.remaining() >= 2) ? buffer.getShort() : (short) this.readSpanning(2);
     }
 
-    private final void encodeInteger(short object) throws IOException {
-      this.encodeInteger((long) object);
+    private final int readInt() throws EOFException {
+      final ByteBuffer buffer = this.current();
+      return (buffer != null && buffer.remaining() >= 4) ? buffer.getInt() : (int) this.readSpanning(4);
     }
-    
-    private final void encodeInteger(int object) throws IOException {
-      this.encodeInteger((long) object);
+
+    private final long readLong() throws EOFException {
+      final ByteBuffer buffer = this.current();
+      return (buffer != null && buffer.remaining() >= 8) ? buffer.getLong() : this.readSpanning(8);
     }
 
-    private final void encodeInteger(long object) throws IOException {
-      if (object >= 0L) {
-        if (object <= 127L) {
-          this.encodePositiveFixnum(object);
-        }
-        else if (object <= 255L) {
-          this.encodeUint8(object);
-        }
-        else if (object <= 65535L) {
-          this.encodeUint16(object);
-        }
-        else if (object <= 4294967295L) {
-          this.encodeUint32(object);
-        }
-        else {
-          this.encodeUint64(object);
-        }
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
       }
-      else {
-        if (object >= -31L) {
-          this.encodeNegativeFixnum(object);
-        }
-        else if (object >= -128L) {
-          this.encodeInt8(object);
-        }
-        else if (object >= -32768L) {
-          this.encodeInt16(object);
-        }
-        else if (object >= -2147483648L) {
-          this.encodeInt32(object);
-        }
-        else {
-          this.encodeInt64(object);
-        }
+      int n = 0;
+      ByteBuffer buffer;
+      while (n != len && (buffer = this.current()) != null) {
+        final int k = Math.min(len - n, buffer.remaining());
+        buffer.get(b, off + n, k);
+        n += k;
       }
+      return (n == 0) ? -1 : n;
     }
 
-    private final void encodeFloat(float object) throws IOException {
-      this.encodeFloat32(object);
+    @Override
+    public long skip(long n) {
+      long k = 0L;
+      ByteBuffer buffer;
+      while (k < n && (buffer = this.current()) != null) {
+        final int step = (int) Math.min(n - k, buffer.remaining());
+        buffer.position(buffer.position() + step);
+        k += step;
+      }
+      return k;
     }
 
-    private final void encodeFloat(double object) throws IOException {
-      this.encodeFloat64(object);
+    @Override
+    public int available() {
+      long n = 0L;
+      for (int i = this.index; i != this.buffers.length; ++i) {
+        n += this.buffers[i].remaining();
+      }
+      return (int) Math.min(n, Integer.MAX_VALUE);
+    }
+  }
+
+  // Pools direct buffers by power of two size classes so serialized messages
+  // can live outside of the Java heap and be reused across messages instead
+  // of being reallocated, at most maxBuffers are kept for each size class.
+  public static class BufferPool {
+    public static final int MIN_CAPACITY = 1 << 12;
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] buffers;
+    private final AtomicInteger[] sizes;
+    private final int maxBuffers;
+
+    public BufferPool() {
+      this(16);
     }
 
-    private final void encodeString(byte[] object) throws IOException {
-      if (object.length <= 15) {
-        this.encodeFixStr(object);
-      }
-      else if (object.length <= 255) {
-        this.encodeStr8(object);
-      }
-      else if (object.length <= 65535) {
-        this.encodeStr16(object);
-      }
-      else {
-        this.encodeStr32(object);
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxBuffers) {
+      final int classes = sizeClass(MAX_CAPACITY) + 1;
+      this.buffers = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[classes];
+      this.sizes = new AtomicInteger[classes];
+      this.maxBuffers = maxBuffers;
+      for (int i = 0; i != classes; ++i) {
+        this.buffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        this.sizes[i] = new AtomicInteger();
       }
     }
 
-    private final void encodeString(String object) throws IOException {
-      this.encodeString(object.getBytes("UTF-8"));
+    private static int sizeClass(int capacity) {
+      return Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1) - 12);
     }
 
-    private final void encodeBinary(byte[] object) throws IOException {
-      if (object.length <= 255) {
-        this.encodeBin8(object);
-      }
-      else if (object.length <= 65535) {
-        this.encodeBin16(object);
+    public final ByteBuffer acquire(int capacity) {
+      if (capacity > MAX_CAPACITY) {
+        throw new IllegalArgumentException("MPack: buffer capacity too large: " + capacity);
       }
-      else {
-        this.encodeBin32(object);
+      final int sizeClass = sizeClass(capacity);
+      final ByteBuffer buffer = this.buffers[sizeClass].poll();
+      if (buffer == null) {
+        return ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
       }
+      this.sizes[sizeClass].decrementAndGet();
+      buffer.clear();
+      return buffer;
     }
 
-    private final <T> void encodeArray(List<T> object) throws IOException {
-      final int length = object.size();
-      if (length <= 15) {
-        this.encodeFixArray(length);
+    public final void release(ByteBuffer buffer) {
+      if (!buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1 || buffer.capacity() < MIN_CAPACITY) {
+        return;
       }
-      else if (length <= 65535) {
-        this.encodeArray16(length);
+      final int sizeClass = sizeClass(buffer.capacity());
+      if (this.sizes[sizeClass].incrementAndGet() > this.maxBuffers) {
+        this.sizes[sizeClass].decrementAndGet();
+        return;
       }
-      else {
-        this.encodeArray32(length);
+      this.buffers[sizeClass].add(buffer);
+    }
+  }
+
+  // Writes to a direct buffer acquired from a pool, growing it by moving to
+  // the next size class when it fills up. Encoders write their scalars to it
+  // with the buffer's big-endian putShort, putInt, ... instead of one byte
+  // at a time through DataOutputStream.
+  public static class BufferOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    public BufferOutputStream(BufferPool pool) {
+      this(pool, BufferPool.MIN_CAPACITY);
+    }
+
+    public BufferOutputStream(BufferPool pool, int capacity) {
+      this.pool = pool;
+      this.buffer = pool.acquire(capacity);
+    }
+
+    private final void reserve(int length) {
+      if (this.buffer.remaining() >= length) {
+        return;
       }
-      for (T item : object) {
-        this.encode(item);
+      final long required = (long) this.buffer.position() + length;
+      if (required > BufferPool.MAX_CAPACITY) {
+        throw new IllegalStateException("MPack: buffer capacity exceeded: " + required);
       }
+      final ByteBuffer buffer = this.pool.acquire((int) Math.max(required, 2L * this.buffer.capacity()));
+      this.buffer.flip();
+      buffer.put(this.buffer);
+      this.pool.release(this.buffer);
+      this.buffer = buffer;
     }
 
-    private final <K, V> void encodeMap(Map<K, V> object) throws IOException {
-      final int length = object.size();
-      if (length <= 15) {
-        this.encodeFixMap(length);
+    @Override
+    public void write(int b) {
+      this.reserve(1);
+      this.buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      this.reserve(len);
+      this.buffer.put(b, off, len);
+    }
+
+    private final void writeShort(int value) {
+      this.reserve(2);
+      this.buffer.putShort((short) value);
+    }
+
+    private final void writeInt(int value) {
+      this.reserve(4);
+      this.buffer.putInt(value);
+    }
+
+    private final void writeLong(long value) {
+      this.reserve(8);
+      this.buffer.putLong(value);
+    }
+
+    public final int size() {
+      return this.buffer.position();
+    }
+
+    // Returns the buffer holding the bytes written so far, ready to be read,
+    // the caller takes ownership of it and should release it to the pool once
+    // it's done with it. The stream must not be used afterwards.
+    public final ByteBuffer toByteBuffer() {
+      final ByteBuffer buffer = this.buffer;
+      this.buffer = null;
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  public static class Decoder {
+    public final DataInputStream istream;
+    public final Metrics metrics;
+    private final CompositeInputStream composite;
+    private boolean strictUtf8;
+    private boolean lazyStrings;
+    private Object[] strings;
+    private int stringCount;
+    private Shape[] shapes;
+    private HashMap<List<Object>, Integer> shapeCounts;
+    private int shapeCount;
+    private int adaptiveThreshold;
+    private byte[] keyBytes;
+
+    public Decoder(InputStream istream) {
+      this(istream, null);
+    }
+
+    public Decoder(InputStream istream, Metrics metrics) {
+      this.istream = new DataInputStream(metrics == null ? istream : new CountingInputStream(istream, metrics));
+      this.metrics = metrics;
+      if (metrics != null) {
+        this.composite = null;
       }
-      else if (length <= 65535) {
-        this.encodeMap16(length);
+      else if (istream instanceof CompositeInputStream) {
+        this.composite = (CompositeInputStream) istream;
       }
-      else {
-        this.encodeMap32(length);
+      else if (istream instanceof BufferInputStream && ((BufferInputStream) istream).buffer.order() == ByteOrder.BIG_ENDIAN) {
+        this.composite = new CompositeInputStream(((BufferInputStream) istream).buffer);
       }
-      for (Map.Entry<K, V> entry : object.entrySet()) {
-        this.encode(entry.getKey());
-        this.encode(entry.getValue());
+      else {
+        this.composite = null;
       }
     }
 
-    private final void encodeExtendedDataType(Extended object) throws IOException {
-      this.ostream.writeByte(object.type);
-      this.ostream.write(object.data);
+    // DataInputStream doesn't buffer, so scalars can be read from the
+    // buffers of composite and buffer streams directly and everything else
+    // through istream.
+    private final int readUnsignedByte() throws IOException {
+      return (this.composite != null) ? this.composite.readUnsignedByte() : this.istream.readUnsignedByte();
     }
 
-    private final void encodeFixExt1(Extended object) throws IOException {
-      this.ostream.writeByte(FIXEXT1);
-      this.encodeExtendedDataType(object);
+    private final byte readByte() throws IOException {
+      return (this.composite != null) ? (byte) this.composite.readUnsignedByte() : this.istream.readByte();
     }
 
-    private final void encodeFixExt2(Extended object) throws IOException {
-      this.ostream.writeByte(FIXEXT2);
-      this.encodeExtendedDataType(object);
+    private final short readShort() throws IOException {
+      return (this.composite != null) ? this.composite.readShort() : this.istream.readShort();
     }
 
-    private final void encodeFixExt4(Extended object) throws IOException {
-      this.ostream.writeByte(FIXEXT4);
-      this.encodeExtendedDataType(object);
+    private final int readUnsignedShort() throws IOException {
+      return (this.composite != null) ? this.composite.readShort() & 0xFFFF : this.istream.readUnsignedShort();
     }
 
-    private final void encodeFixExt8(Extended object) throws IOException {
-      this.ostream.writeByte(FIXEXT8);
-      this.encodeExtendedDataType(object);
+    private final int readInt() throws IOException {
+      return (this.composite != null) ? this.composite.readInt() : this.istream.readInt();
     }
 
-    private final void encodeFixExt16(Extended object) throws IOException {
-      this.ostream.writeByte(FIXEXT16);
-      this.encodeExtendedDataType(object);
+    private final long readLong() throws IOException {
+      return (this.composite != null) ? this.composite.readLong() : this.istream.readLong();
     }
 
-    private final void encodeExt8(Extended object) throws IOException {
-      this.ostream.writeByte(EXT8);
-      this.ostream.writeByte(object.data.length);
-      this.encodeExtendedDataType(object);
+    private final Long decodeUint8() throws IOException {
+      return SMALL_LONGS[this.readUnsignedByte() + 128];
     }
 
-    private final void encodeExt16(Extended object) throws IOException {
-      this.ostream.writeByte(EXT16);
-      this.ostream.writeShort(object.data.length);
-      this.encodeExtendedDataType(object);
+    private final Long decodeUint16() throws IOException {
+      return (long) this.readUnsignedShort();
     }
 
-    private final void encodeExt32(Extended object) throws IOException {
-      this.ostream.writeByte(EXT32);
-      this.ostream.writeInt(object.data.length);
-      this.encodeExtendedDataType(object);
+    private final Long decodeUint32() throws IOException {
+      return this.readInt() & 0xFFFFFFFFL;
     }
 
-    private final void encodeExtended(Extended object) throws IOException {
-      switch (object.data.length) {
-      case 1:
-        this.encodeFixExt1(object);
-        break;
-        
-      case 2:
-        this.encodeFixExt2(object);
-        break;
-        
-      case 4:
-        this.encodeFixExt4(object);
-        break;
-        
-      case 8:
-        this.encodeFixExt8(object);
-        break;
+    private final Long decodeUint64() throws IOException {
+      return this.readLong();
+    }
 
-      case 16:
-        this.encodeFixExt16(object);
+    private final Long decodeInt8() throws IOException {
+      return SMALL_LONGS[this.readByte() + 128];
+    }
+
+    private final Long decodeInt16() throws IOException {
+      return (long) this.readShort();
+    }
+
+    private final Long decodeInt32() throws IOException {
+      return (long) this.readInt();
+    }
+
+    private final Long decodeInt64() throws IOException {
+      return this.readLong();
+    }
+
+    private final Float decodeFloat32() throws IOException {
+      return Float.intBitsToFloat(this.readInt());
+    }
+
+    private final Double decodeFloat64() throws IOException {
+      return Double.longBitsToDouble(this.readLong());
+    }
+
+    private final Object decodeString(int length) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.payload(Metrics.STRING, length);
+      }
+      final byte[] bytes = new byte[length];
+      this.istream.readFully(bytes);
+      return this.newString(bytes);
+    }
+
+    private final Object newString(byte[] bytes) throws IOException {
+      final int length = bytes.length;
+      if (this.strictUtf8 && !isValidUtf8(bytes, 0, length)) {
+        throw new IOException("MPack: decoder found invalid UTF-8 string");
+      }
+      final Object string = this.lazyStrings ? new Utf8String(bytes) : new String(bytes, StandardCharsets.UTF_8);
+      if (this.strings != null && length >= MIN_REFERENCED_LENGTH) {
+        this.strings[this.stringCount++ % this.strings.length] = string;
+        if (this.stringCount < 0) {
+          this.stringCount = this.strings.length;
+        }
+      }
+      return string;
+    }
+
+    private final byte[] decodeBinary(int length) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.payload(Metrics.BINARY, length);
+      }
+      final byte[] bytes = new byte[length];
+      this.istream.readFully(bytes);
+      return bytes;
+    }
+
+    private final int decodeLength32() throws IOException {
+      final int length = this.readInt();
+      if (length < 0) {
+        throw new IOException("MPack: decoder found a length too large to decode in memory: " + (length & 0xFFFFFFFFL));
+      }
+      return length;
+    }
+
+    // Decodes the header of the next value, which must be a str or a bin, and
+    // returns a stream over its payload instead of reading it in memory.
+    public final PayloadInputStream decodeStream() throws IOException {
+      final int tag = this.readUnsignedByte();
+      final long length;
+      switch (tag) {
+      case STR8:
+      case BIN8:
+        length = this.readUnsignedByte();
+        break;
+
+      case STR16:
+      case BIN16:
+        length = this.readUnsignedShort();
+        break;
+
+      case STR32:
+      case BIN32:
+        length = this.readInt() & 0xFFFFFFFFL;
         break;
 
       default:
-        if (object.data.length <= 255) {
-          this.encodeExt8(object);
+        if ((tag & 0xE0) != FIXSTR) {
+          throw new IOException("MPack: decoder expected a str or bin value but found tag: " + tag);
+        }
+        length = tag & ~FIXSTR;
+      }
+      final int family = Metrics.family(tag);
+      if (family == Metrics.STRING && this.strings != null && length >= MIN_REFERENCED_LENGTH) {
+        throw new IOException("MPack: decoder cannot stream strings when string references are enabled");
+      }
+      if (this.metrics != null) {
+        this.metrics.value(family);
+        this.metrics.payload(family, length);
+      }
+      return new PayloadInputStream(this.istream, length);
+    }
+
+    // Reads the next value as it is encoded, without decoding it. String
+    // references are neither resolved nor remembered, so decoders with string
+    // references enabled can't read raw values.
+    public final Raw decodeRaw() throws IOException {
+      if (this.strings != null) {
+        throw new IllegalStateException("MPack: decoder cannot read raw values when string references are enabled");
+      }
+      final Buffer buffer = new Buffer(16);
+      long pending = 1L;
+      while (pending-- != 0L) {
+        final int tag = this.readUnsignedByte();
+        final int info = HEADERS[tag];
+        if (info < 0) {
+          throw new IOException("MPack: decoder found unknown tag: " + tag);
+        }
+        buffer.write(tag);
+        long length = 0L;
+        for (int i = (info >>> 8) & 0xFF; i != 0; --i) {
+          final int b = this.readUnsignedByte();
+          buffer.write(b);
+          length = (length << 8) | b;
+        }
+        length += info >>> 16;
+        switch (info & 0xFF) {
+        case HEADER.ARRAY:
+          pending += length;
+          break;
+
+        case HEADER.MAP:
+          pending += 2L * length;
+          break;
+
+        default:
+          if (length > Integer.MAX_VALUE - 8 - buffer.size()) {
+            throw new IOException("MPack: decoder found a value too large to read in memory");
+          }
+          final byte[] payload = new byte[(int) length];
+          this.istream.readFully(payload);
+          buffer.write(payload, 0, payload.length);
+        }
+      }
+      return new Raw(buffer.toByteArray());
+    }
+
+    private final List<?> decodeArray(int length) throws IOException {
+      final ArrayList<Object> array = new ArrayList<Object>(length);
+      if (this.metrics != null) {
+        this.metrics.enter(length);
+      }
+      while (length-- != 0) {
+        array.add(this.decodeValue());
+      }
+      if (this.metrics != null) {
+        this.metrics.leave();
+      }
+      return array;
+    }
+
+    private final Map<?, ?> decodeMap(int length) throws IOException {
+      // The length comes from the input, so presizing is capped to keep a
+      // corrupted header from allocating a huge table.
+      final HashMap<Object, Object> map = new HashMap<Object, Object>(Math.min(length, MAX_PRESIZED_ENTRIES) * 4 / 3 + 1);
+      if (this.metrics != null) {
+        this.metrics.enter(length);
+      }
+      // Once no more shapes can be learned, maps of a size without shapes
+      // don't go through the adaptive path at all.
+      if (this.shapes != null && this.strings == null && length != 0 && length < this.shapes.length
+          && (this.shapes[length] != null || this.shapeCount < MAX_SHAPES)) {
+        this.decodeAdaptive(map, length);
+      }
+      else {
+        while (length-- != 0) {
+          final Object key = this.decodeValue();
+          final Object val = this.decodeValue();
+          map.put(key, val);
+        }
+      }
+      if (this.metrics != null) {
+        this.metrics.leave();
+      }
+      return map;
+    }
+
+    // Shapes are the sequences of string keys of maps that the decoder has seen
+    // at least adaptiveThreshold times, grouped by number of keys. When a map
+    // of that size comes, its keys are read as bytes and compared to the ones
+    // of the shape, matching keys reuse the strings decoded the first time
+    // instead of decoding new ones, and the first one that differs makes the
+    // decoder read the rest of the map the generic way.
+    private static final class Shape {
+      private final byte[][] keys;
+      private final Object[] names;
+      private final Shape next;
+
+      Shape(Object[] names, Shape next) {
+        this.keys = new byte[names.length][];
+        this.names = names;
+        this.next = next;
+        for (int i = 0; i != names.length; ++i) {
+          this.keys[i] = names[i].toString().getBytes(StandardCharsets.UTF_8);
+        }
+      }
+
+      private final boolean matches(int index, byte[] bytes, int length) {
+        final byte[] key = this.keys[index];
+        return key.length == length && Arrays.equals(key, 0, length, bytes, 0, length);
+      }
+
+      // Finds a shape of the list starting at this one that has the same first
+      // index keys as shape, and a key equal to bytes after them.
+      private final Shape find(Shape shape, int index, byte[] bytes, int length) {
+        for (Shape next = this; next != null; next = next.next) {
+          if (next.matches(index, bytes, length) && (next == shape || next.startsWith(shape, index))) {
+            return next;
+          }
+        }
+        return null;
+      }
+
+      private final boolean startsWith(Shape shape, int index) {
+        for (int i = 0; i != index; ++i) {
+          if (!Arrays.equals(this.keys[i], shape.keys[i])) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+
+    private static final int MAX_PRESIZED_ENTRIES = 1 << 16;
+    private static final int MAX_SHAPE_KEYS = 32;
+    private static final int MAX_SHAPES = 64;
+    private static final int MAX_SHAPE_CANDIDATES = 256;
+
+    // Makes the decoder learn the keys of maps that repeat at least threshold
+    // times and decode the following ones with less work, see Shape. It has
+    // no effect when string references are enabled. Passing 0 disables it and
+    // forgets the learned shapes.
+    public final void setAdaptive(int threshold) {
+      this.adaptiveThreshold = threshold;
+      this.shapes = (threshold == 0) ? null : new Shape[MAX_SHAPE_KEYS + 1];
+      this.shapeCounts = (threshold == 0) ? null : new HashMap<List<Object>, Integer>();
+      this.shapeCount = 0;
+      this.keyBytes = (threshold == 0) ? null : new byte[64];
+    }
+
+    private final void recordShape(Object[] keys) {
+      for (Object key : keys) {
+        if (!(key instanceof String) && !(key instanceof Utf8String)) {
+          return;
+        }
+      }
+      final List<Object> shape = Arrays.asList(keys);
+      final Integer count = this.shapeCounts.get(shape);
+      if (count == null) {
+        if (this.shapeCounts.size() < MAX_SHAPE_CANDIDATES) {
+          this.shapeCounts.put(shape, 1);
+        }
+      }
+      else if (count + 1 < this.adaptiveThreshold) {
+        this.shapeCounts.put(shape, count + 1);
+      }
+      else if (this.shapeCount < MAX_SHAPES) {
+        this.shapeCounts.remove(shape);
+        this.shapes[keys.length] = new Shape(keys, this.shapes[keys.length]);
+        if (++this.shapeCount == MAX_SHAPES) {
+          this.shapeCounts.clear();
+        }
+      }
+    }
+
+    // Reads the keys of the map as long as they match one of the shapes of
+    // that size, then the rest of the map the generic way while recording its
+    // keys, so maps that missed can become shapes too, unless MAX_SHAPES have
+    // already been learned.
+    private final void decodeAdaptive(HashMap<Object, Object> map, int length) throws IOException {
+      final boolean learning = this.shapeCount < MAX_SHAPES;
+      final Shape shapes = this.shapes[length];
+      Shape shape = shapes;
+      Object[] keys = null;
+      int i = 0;
+      while (shape != null && i != length) {
+        final int tag = this.readUnsignedByte();
+        final int header = HEADERS[tag];
+        final Shape matched = shape;
+        final Object key;
+        if (header < 0 || FAMILIES[tag] != Metrics.STRING) {
+          key = this.decodeValue(tag);
+          shape = null;
+        }
+        else {
+          final int size = this.decodeLength(header);
+          if (this.metrics != null) {
+            this.metrics.value(Metrics.STRING);
+            this.metrics.payload(Metrics.STRING, size);
+          }
+          if (size > this.keyBytes.length) {
+            this.keyBytes = new byte[Math.max(size, 2 * this.keyBytes.length)];
+          }
+          this.istream.readFully(this.keyBytes, 0, size);
+          if (!shape.matches(i, this.keyBytes, size)) {
+            shape = shapes.find(shape, i, this.keyBytes, size);
+          }
+          key = (shape != null) ? shape.names[i] : this.newString(Arrays.copyOf(this.keyBytes, size));
+        }
+        if (shape == null && learning) {
+          keys = new Object[length];
+          System.arraycopy(matched.names, 0, keys, 0, i);
+          keys[i] = key;
+        }
+        map.put(key, this.decodeValue());
+        ++i;
+      }
+      if (shape != null) {
+        return;
+      }
+      if (keys == null && learning) {
+        keys = new Object[length];
+      }
+      for (; i != length; ++i) {
+        final Object key = this.decodeValue();
+        final Object val = this.decodeValue();
+        map.put(key, val);
+        if (keys != null) {
+          keys[i] = key;
+        }
+      }
+      if (keys != null) {
+        this.recordShape(keys);
+      }
+    }
+
+    private final Object decodeExtended(int length) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.payload(Metrics.EXTENDED, length);
+      }
+      final byte[] data = new byte[length];
+      final int type = this.readUnsignedByte();
+      this.istream.readFully(data);
+      if (type == STRING_REFERENCE_TYPE && this.strings != null) {
+        return this.decodeStringReference(data);
+      }
+      return new Extended(type, data);
+    }
+
+    private final Object decodeStringReference(byte[] data) throws IOException {
+      long slot = 0L;
+      for (byte b : data) {
+        slot = (slot << 8) | (b & 0xFF);
+      }
+      if (data.length > 4 || slot >= Math.min(this.stringCount, this.strings.length)) {
+        throw new IOException("MPack: decoder found invalid string reference: " + slot);
+      }
+      return this.strings[(int) slot];
+    }
+
+    // Enables resolving the string references written by an encoder with the
+    // same capacity, or disables it when capacity is zero. Every string of at
+    // least 4 bytes is remembered in the same order as the encoder does.
+    public final void setStringReferences(int capacity) {
+      this.strings = (capacity == 0) ? null : new Object[capacity];
+      this.stringCount = 0;
+    }
+
+    public final void resetStringReferences() {
+      this.stringCount = 0;
+    }
+
+    // Makes the decoder reject strings that aren't valid UTF-8 instead of
+    // replacing their malformed sequences.
+    public final void setStrictUtf8(boolean strict) {
+      this.strictUtf8 = strict;
+    }
+
+    // Makes the decoder return strings as Utf8String, which only decode their
+    // characters when needed. Learned shapes are forgotten since their keys
+    // keep the type they were decoded with.
+    public final void setLazyStrings(boolean lazy) {
+      this.lazyStrings = lazy;
+      if (this.shapes != null) {
+        this.setAdaptive(this.adaptiveThreshold);
+      }
+    }
+
+    public final Object decode() throws IOException {
+      if (this.metrics == null) {
+        return this.decodeValue();
+      }
+      final long start = this.metrics.begin();
+      final Object object = this.decodeValue();
+      this.metrics.end("decode", start);
+      return object;
+    }
+
+    private final Object decodeValue() throws IOException {
+      return this.decodeValue(this.readUnsignedByte());
+    }
+
+    private final Object decodeValue(int tag) throws IOException {
+      final int family = FAMILIES[tag];
+      if (family < 0) {
+        throw new IOException("MPack: decoder found unknown tag: " + tag);
+      }
+      if (this.metrics != null) {
+        this.metrics.value(family);
+      }
+
+      final Object constant = CONSTANTS[tag];
+      if (constant != null || tag == NIL) {
+        return constant;
+      }
+
+      final int header = HEADERS[tag];
+      switch (header < 0 ? -1 : family) {
+      case Metrics.STRING:
+        return this.decodeString(this.decodeLength(header));
+
+      case Metrics.BINARY:
+        return this.decodeBinary(this.decodeLength(header));
+
+      case Metrics.ARRAY:
+        return this.decodeArray(this.decodeLength(header));
+
+      case Metrics.MAP:
+        return this.decodeMap(this.decodeLength(header));
+
+      case Metrics.EXTENDED:
+        // The implied length of fixext values counts their type byte.
+        return this.decodeExtended((header & 0xFF00) == 0 ? (header >>> 16) - 1 : this.decodeLength(header));
+      }
+
+      switch (tag) {
+      case UINT8:
+        return this.decodeUint8();
+
+      case UINT16:
+        return this.decodeUint16();
+
+      case UINT32:
+        return this.decodeUint32();
+
+      case UINT64:
+        return this.decodeUint64();
+
+      case INT8:
+        return this.decodeInt8();
+
+      case INT16:
+        return this.decodeInt16();
+
+      case INT32:
+        return this.decodeInt32();
+
+      case INT64:
+        return this.decodeInt64();
+
+      case FLOAT32:
+        return this.decodeFloat32();
+
+      case FLOAT64:
+        return this.decodeFloat64();
+
+      default:
+        throw new IOException("MPack: decoder found unknown tag: " + tag);
+      }
+    }
+
+    private final int decodeLength(int header) throws IOException {
+      switch ((header >>> 8) & 0xFF) {
+      case 0:
+        return header >>> 16;
+
+      case 1:
+        return this.readUnsignedByte();
+
+      case 2:
+        return this.readUnsignedShort();
+
+      default:
+        return this.decodeLength32();
+      }
+    }
+
+    public final boolean decodeBoolean() throws IOException {
+      return (Boolean) this.decode();
+    }
+
+    public final byte decodeByte() throws IOException {
+      return this.decodeNumber().byteValue();
+    }
+
+    public final short decodeShort() throws IOException {
+      return this.decodeNumber().shortValue();
+    }
+
+    public final int decodeInt() throws IOException {
+      return this.decodeNumber().intValue();
+    }
+
+    public final long decodeLong() throws IOException {
+      return this.decodeNumber().longValue();
+    }
+
+    public final float decodeFloat() throws IOException {
+      return this.decodeNumber().floatValue();
+    }
+
+    public final double decodeDouble() throws IOException {
+      return this.decodeNumber().doubleValue();
+    }
+
+    public final Number decodeNumber() throws IOException {
+      return (Number) this.decode();
+    }
+
+    public final String decodeString() throws IOException {
+      final Object object = this.decode();
+      return (object instanceof Utf8String) ? object.toString() : (String) object;
+    }
+
+    public final byte[] decodeBinary() throws IOException {
+      return (byte[]) this.decode();
+    }
+
+    public final Extended decodeExtended() throws IOException {
+      return (Extended) this.decode();
+    }
+
+    @SuppressWarnings("unchecked")
+    public final <T> List<T> decodeList(Class<T> elementClass) throws IOException {
+      final List<?> list = (List) this.decode();
+      for (Object obj : list) {
+        if (!elementClass.isAssignableFrom(obj.getClass())) {
+          throw new ClassCastException("unexpected type found while decoding list: " + obj.getClass().toString());
+        }
+      }
+      return (List<T>) list;
+    }
+
+    @SuppressWarnings("unchecked")
+    public final <K, V> Map<K, V> decodeMap(Class<K> keyClass, Class<V> valueClass) throws IOException {
+      final Map<?, ?> map = (Map) this.decode();
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        final Object key = entry.getKey();
+        final Object value = entry.getValue();
+        if (!keyClass.isAssignableFrom(key.getClass())) {
+          throw new ClassCastException("unexpected type found while decoding map key: " + key.getClass().toString());
+        }
+        if (!valueClass.isAssignableFrom(value.getClass())) {
+          throw new ClassCastException("unexpected type found while decoding map value: " + value.getClass().toString());
+        }
+      }
+      return (Map<K, V>) map;
+    }
+  }
+
+  // Encodes objects of a type encoders have no built-in encoding for, usually
+  // by encoding them as one of the built-in types with encoder.encode.
+  public interface Codec<T> {
+    void encode(Encoder encoder, T object) throws IOException;
+  }
+
+  // Encoders find how to encode an object with a single lookup on its class,
+  // which is resolved the first time the class is seen: a codec registered
+  // for the class itself comes first, then the built-in types, then codecs
+  // registered for a superclass or an interface in registration order.
+  private static final class Dispatch {
+    private static final int NONE       = 0;
+    private static final int BOOLEAN    = 1;
+    private static final int BYTE       = 2;
+    private static final int SHORT      = 3;
+    private static final int INTEGER    = 4;
+    private static final int LONG       = 5;
+    private static final int FLOAT      = 6;
+    private static final int DOUBLE     = 7;
+    private static final int STRING     = 8;
+    private static final int BINARY     = 9;
+    private static final int LIST       = 10;
+    private static final int MAP        = 11;
+    private static final int EXTENDED   = 12;
+    private static final int UTF8STRING = 13;
+    private static final int RAW        = 14;
+    private static final int CODEC      = 15;
+    private static final int CHARS      = 16;
+
+    private final int kind;
+    private final Codec<Object> codec;
+
+    private Dispatch(int kind, Codec<Object> codec) {
+      this.kind = kind;
+      this.codec = codec;
+    }
+
+    private static int builtin(Class<?> type) {
+      if (type == Boolean.class) {
+        return BOOLEAN;
+      }
+      if (type == Byte.class) {
+        return BYTE;
+      }
+      if (type == Short.class) {
+        return SHORT;
+      }
+      if (type == Integer.class) {
+        return INTEGER;
+      }
+      if (type == Long.class) {
+        return LONG;
+      }
+      if (type == Float.class) {
+        return FLOAT;
+      }
+      if (type == Double.class) {
+        return DOUBLE;
+      }
+      if (type == String.class) {
+        return STRING;
+      }
+      if (type == byte[].class) {
+        return BINARY;
+      }
+      if (type == Utf8String.class) {
+        return UTF8STRING;
+      }
+      if (type == Raw.class) {
+        return RAW;
+      }
+      if (List.class.isAssignableFrom(type)) {
+        return LIST;
+      }
+      if (Map.class.isAssignableFrom(type)) {
+        return MAP;
+      }
+      if (Extended.class.isAssignableFrom(type)) {
+        return EXTENDED;
+      }
+      if (CharSequence.class.isAssignableFrom(type)) {
+        return CHARS;
+      }
+      return NONE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Dispatch resolve(Map<Class<?>, Codec<?>> codecs, Class<?> type) {
+      Codec<?> codec = codecs.get(type);
+      if (codec == null) {
+        final int kind = builtin(type);
+        if (kind != NONE) {
+          return new Dispatch(kind, null);
+        }
+        for (Map.Entry<Class<?>, Codec<?>> entry : codecs.entrySet()) {
+          if (entry.getKey().isAssignableFrom(type)) {
+            codec = entry.getValue();
+            break;
+          }
+        }
+      }
+      return (codec == null) ? new Dispatch(NONE, null) : new Dispatch(CODEC, (Codec<Object>) codec);
+    }
+  }
+
+  private static Map<Class<?>, Codec<?>> codecs = new LinkedHashMap<Class<?>, Codec<?>>();
+  private static volatile ClassValue<Dispatch> dispatches = newDispatches(codecs);
+
+  private static ClassValue<Dispatch> newDispatches(final Map<Class<?>, Codec<?>> codecs) {
+    return new ClassValue<Dispatch>() {
+      @Override
+      protected Dispatch computeValue(Class<?> type) {
+        return Dispatch.resolve(codecs, type);
+      }
+    };
+  }
+
+  // Registers the codec that encoders use for objects of the given type and
+  // its subtypes, replacing the one previously registered for this type.
+  // Registering is expensive since every class has to be resolved again, it
+  // is meant to be done once when an application starts.
+  public static synchronized <T> void register(Class<T> type, Codec<? super T> codec) {
+    final LinkedHashMap<Class<?>, Codec<?>> copy = new LinkedHashMap<Class<?>, Codec<?>>(codecs);
+    copy.put(type, codec);
+    codecs = copy;
+    dispatches = newDispatches(copy);
+  }
+
+  public static synchronized void unregister(Class<?> type) {
+    final LinkedHashMap<Class<?>, Codec<?>> copy = new LinkedHashMap<Class<?>, Codec<?>>(codecs);
+    copy.remove(type);
+    codecs = copy;
+    dispatches = newDispatches(copy);
+  }
+
+  public static class Encoder {
+    public final DataOutputStream ostream;
+    public final Metrics metrics;
+    private HashMap<String, Integer> strings;
+    private String[] stringSlots;
+    private int stringCount;
+    private int nested;
+    private ForkJoinPool pool;
+    private int parallelThreshold;
+    private byte[] charBytes;
+    private final BufferOutputStream direct;
+
+    public Encoder(OutputStream ostream) {
+      this(ostream, null);
+    }
+
+    public Encoder(OutputStream ostream, Metrics metrics) {
+      this.ostream = new DataOutputStream(metrics == null ? ostream : new CountingOutputStream(ostream, metrics));
+      this.metrics = metrics;
+      this.direct = (metrics == null && ostream instanceof BufferOutputStream) ? (BufferOutputStream) ostream : null;
+    }
+
+    // DataOutputStream doesn't buffer, so scalars can be put in the pooled
+    // buffer directly and everything else goes through ostream.
+    private final void writeByte(int value) throws IOException {
+      if (this.direct != null) {
+        this.direct.write(value);
+      }
+      else {
+        this.ostream.writeByte(value);
+      }
+    }
+
+    private final void writeShort(int value) throws IOException {
+      if (this.direct != null) {
+        this.direct.writeShort(value);
+      }
+      else {
+        this.ostream.writeShort(value);
+      }
+    }
+
+    private final void writeInt(int value) throws IOException {
+      if (this.direct != null) {
+        this.direct.writeInt(value);
+      }
+      else {
+        this.ostream.writeInt(value);
+      }
+    }
+
+    private final void writeLong(long value) throws IOException {
+      if (this.direct != null) {
+        this.direct.writeLong(value);
+      }
+      else {
+        this.ostream.writeLong(value);
+      }
+    }
+
+    private final void encodeNil() throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.NIL);
+      }
+      this.writeByte(NIL);
+    }
+
+    private final void encodeTrue() throws IOException {
+      this.writeByte(TRUE);
+    }
+
+    private final void encodeFalse() throws IOException {
+      this.writeByte(FALSE);
+    }
+
+    private final void encodePositiveFixnum(long object) throws IOException {
+      this.writeByte((int) object);
+    }
+
+    private final void encodeNegativeFixnum(long object) throws IOException {
+      this.writeByte((int) object);
+    }
+
+    private final void encodeUint8(long object) throws IOException {
+      this.writeByte(UINT8);
+      this.writeByte((int) object);
+    }
+
+    private final void encodeUint16(long object) throws IOException {
+      this.writeByte(UINT16);
+      this.writeShort((int) object);
+    }
+
+    private final void encodeUint32(long object) throws IOException {
+      this.writeByte(UINT32);
+      this.writeInt((int) object);
+    }
+
+    private final void encodeUint64(long object) throws IOException {
+      this.writeByte(UINT64);
+      this.writeLong(object);
+    }
+
+    private final void encodeInt8(long object) throws IOException {
+      this.writeByte(INT8);
+      this.writeByte((int) object);
+    }
+
+    private final void encodeInt16(long object) throws IOException {
+      this.writeByte(INT16);
+      this.writeShort((int) object);
+    }
+
+    private final void encodeInt32(long object) throws IOException {
+      this.writeByte(INT32);
+      this.writeInt((int) object);
+    }
+
+    private final void encodeInt64(long object) throws IOException {
+      this.writeByte(INT64);
+      this.writeLong(object);
+    }
+
+    private final void encodeFloat32(float object) throws IOException {
+      this.writeByte(FLOAT32);
+      this.writeInt(Float.floatToIntBits(object));
+    }
+
+    private final void encodeFloat64(double object) throws IOException {
+      this.writeByte(FLOAT64);
+      this.writeLong(Double.doubleToLongBits(object));
+    }
+
+    private final void encodeFixStr(byte[] object) throws IOException {
+      this.writeByte(FIXSTR | object.length);
+      this.ostream.write(object);
+    }
+
+    private final void encodeStr8(byte[] object) throws IOException {
+      this.writeByte(STR8);
+      this.writeByte(object.length);
+      this.ostream.write(object);
+    }
+
+    private final void encodeStr16(byte[] object) throws IOException {
+      this.writeByte(STR16);
+      this.writeShort(object.length);
+      this.ostream.write(object);
+    }
+
+    private final void encodeStr32(byte[] object) throws IOException {
+      this.writeByte(STR32);
+      this.writeInt(object.length);
+      this.ostream.write(object);
+    }
+
+    private final void encodeBin8(byte[] object) throws IOException {
+      this.writeByte(BIN8);
+      this.writeByte(object.length);
+      this.ostream.write(object);
+    }
+
+    private final void encodeBin16(byte[] object) throws IOException {
+      this.writeByte(BIN16);
+      this.writeShort(object.length);
+      this.ostream.write(object);
+    }
+
+    private final void encodeBin32(byte[] object) throws IOException {
+      this.writeByte(BIN32);
+      this.writeInt(object.length);
+      this.ostream.write(object);
+    }
+
+    // Writes a bin value of the given length with its payload read from
+    // istream, so values larger than what fits in memory can be encoded.
+    public final void encodeStream(InputStream istream, long length) throws IOException {
+      if (length < 0L || length > 0xFFFFFFFFL) {
+        throw new IllegalArgumentException("MPack: bin payloads are limited to 4 GiB: " + length);
+      }
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.BINARY);
+        this.metrics.payload(Metrics.BINARY, length);
+      }
+      if (length <= 255L) {
+        this.writeByte(BIN8);
+        this.writeByte((int) length);
+      }
+      else if (length <= 65535L) {
+        this.writeByte(BIN16);
+        this.writeShort((int) length);
+      }
+      else {
+        this.writeByte(BIN32);
+        this.writeInt((int) length);
+      }
+      final byte[] buffer = new byte[(int) Math.min(length, 65536L)];
+      while (length != 0L) {
+        final int n = istream.read(buffer, 0, (int) Math.min(length, buffer.length));
+        if (n < 0) {
+          throw new EOFException();
+        }
+        this.ostream.write(buffer, 0, n);
+        length -= n;
+      }
+    }
+
+    private final void encodeFixArray(int length) throws IOException {
+      this.writeByte(FIXARRAY | length);
+    }
+
+    private final void encodeArray16(int length) throws IOException {
+      this.writeByte(ARRAY16);
+      this.writeShort(length);
+    }
+
+    private final void encodeArray32(int length) throws IOException {
+      this.writeByte(ARRAY32);
+      this.writeInt(length);
+    }
+
+    private final void encodeFixMap(int length) throws IOException {
+      this.writeByte(FIXMAP | length);
+    }
+
+    private final void encodeMap16(int length) throws IOException {
+      this.writeByte(MAP16);
+      this.writeShort(length);
+    }
+
+    private final void encodeMap32(int length) throws IOException {
+      this.writeByte(MAP32);
+      this.writeInt(length);
+    }
+
+    private final void encodeBoolean(boolean object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.BOOLEAN);
+      }
+      if (object) {
+        this.encodeTrue();
+      }
+      else {
+        this.encodeFalse();
+      }
+    }
+
+    private final void encodeInteger(byte object) throws IOException {
+      this.encodeInteger((long) object);
+    }
+
+    private final void encodeInteger(short object) throws IOException {
+      this.encodeInteger((long) object);
+    }
+    
+    private final void encodeInteger(int object) throws IOException {
+      this.encodeInteger((long) object);
+    }
+
+    private final void encodeInteger(long object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.INTEGER);
+      }
+      if (object >= 0L) {
+        if (object <= 127L) {
+          this.encodePositiveFixnum(object);
+        }
+        else if (object <= 255L) {
+          this.encodeUint8(object);
+        }
+        else if (object <= 65535L) {
+          this.encodeUint16(object);
+        }
+        else if (object <= 4294967295L) {
+          this.encodeUint32(object);
+        }
+        else {
+          this.encodeUint64(object);
+        }
+      }
+      else {
+        if (object >= -31L) {
+          this.encodeNegativeFixnum(object);
+        }
+        else if (object >= -128L) {
+          this.encodeInt8(object);
+        }
+        else if (object >= -32768L) {
+          this.encodeInt16(object);
+        }
+        else if (object >= -2147483648L) {
+          this.encodeInt32(object);
+        }
+        else {
+          this.encodeInt64(object);
+        }
+      }
+    }
+
+    private final void encodeFloat(float object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.FLOAT);
+      }
+      this.encodeFloat32(object);
+    }
+
+    private final void encodeFloat(double object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.FLOAT);
+      }
+      this.encodeFloat64(object);
+    }
+
+    private final void encodeString(byte[] object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.STRING);
+        this.metrics.payload(Metrics.STRING, object.length);
+      }
+      if (object.length <= 15) {
+        this.encodeFixStr(object);
+      }
+      else if (object.length <= 255) {
+        this.encodeStr8(object);
+      }
+      else if (object.length <= 65535) {
+        this.encodeStr16(object);
+      }
+      else {
+        this.encodeStr32(object);
+      }
+    }
+
+    private final void encodeString(String object) throws IOException {
+      if (this.strings == null) {
+        this.encodeString(object.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      final Integer slot = this.strings.get(object);
+      if (slot != null) {
+        this.encodeStringReference(slot);
+        return;
+      }
+      final byte[] bytes = object.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length >= MIN_REFERENCED_LENGTH) {
+        this.rememberString(object);
+      }
+      this.encodeString(bytes);
+    }
+
+    private final void rememberString(String object) {
+      final int slot = this.stringCount % this.stringSlots.length;
+      if (this.stringSlots[slot] != null) {
+        this.strings.remove(this.stringSlots[slot]);
+      }
+      this.stringSlots[slot] = object;
+      this.strings.put(object, slot);
+      if (++this.stringCount < 0) {
+        this.stringCount = this.stringSlots.length;
+      }
+    }
+
+    private final void encodeStringReference(int slot) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.EXTENDED);
+      }
+      if (slot <= 255) {
+        this.writeByte(FIXEXT1);
+        this.writeByte(STRING_REFERENCE_TYPE);
+        this.writeByte(slot);
+      }
+      else if (slot <= 65535) {
+        this.writeByte(FIXEXT2);
+        this.writeByte(STRING_REFERENCE_TYPE);
+        this.writeShort(slot);
+      }
+      else {
+        this.writeByte(FIXEXT4);
+        this.writeByte(STRING_REFERENCE_TYPE);
+        this.writeInt(slot);
+      }
+    }
+
+    // Makes the encoder remember the last strings of at least 4 bytes it has
+    // written, up to capacity of them, and write repeated ones as a reference
+    // to their first occurrence. Decoders must enable string references with
+    // the same capacity to resolve them, and both sides must be reset at the
+    // same points to scope references to a single message.
+    public final void setStringReferences(int capacity) {
+      this.strings = (capacity == 0) ? null : new HashMap<String, Integer>(2 * capacity);
+      this.stringSlots = (capacity == 0) ? null : new String[capacity];
+      this.stringCount = 0;
+    }
+
+    public final void resetStringReferences() {
+      if (this.strings != null) {
+        this.strings.clear();
+        Arrays.fill(this.stringSlots, null);
+        this.stringCount = 0;
+      }
+    }
+
+    // Writes the characters of either sequence or chars as a str value,
+    // transcoding them to UTF-8 through a small buffer instead of creating a
+    // String and its bytes. Unpaired surrogates are written as '?', which is
+    // what String.getBytes does. With string references enabled the string
+    // is created anyway, since it has to be remembered.
+    private final void encodeChars(CharSequence sequence, char[] chars, int offset, int length) throws IOException {
+      if (this.strings != null) {
+        this.encodeString((sequence != null) ? sequence.subSequence(offset, offset + length).toString() : new String(chars, offset, length));
+        return;
+      }
+      final int end = offset + length;
+      long size = 0L;
+      for (int i = offset; i < end; ++i) {
+        final char c = (sequence != null) ? sequence.charAt(i) : chars[i];
+        if (c < 0x80) {
+          size += 1;
+        }
+        else if (c < 0x800) {
+          size += 2;
+        }
+        else if (!Character.isSurrogate(c)) {
+          size += 3;
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < end
+                 && Character.isLowSurrogate((sequence != null) ? sequence.charAt(i + 1) : chars[i + 1])) {
+          size += 4;
+          ++i;
+        }
+        else {
+          size += 1;
+        }
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("MPack: string too large to be encoded: " + size + " bytes");
+      }
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.STRING);
+        this.metrics.payload(Metrics.STRING, size);
+      }
+      if (size <= 15) {
+        this.writeByte(FIXSTR | (int) size);
+      }
+      else if (size <= 255) {
+        this.writeByte(STR8);
+        this.writeByte((int) size);
+      }
+      else if (size <= 65535) {
+        this.writeByte(STR16);
+        this.writeShort((int) size);
+      }
+      else {
+        this.writeByte(STR32);
+        this.writeInt((int) size);
+      }
+      if (this.charBytes == null) {
+        this.charBytes = new byte[1024];
+      }
+      final byte[] bytes = this.charBytes;
+      int n = 0;
+      for (int i = offset; i < end; ++i) {
+        if (n > bytes.length - 4) {
+          this.ostream.write(bytes, 0, n);
+          n = 0;
+        }
+        final char c = (sequence != null) ? sequence.charAt(i) : chars[i];
+        if (c < 0x80) {
+          bytes[n++] = (byte) c;
+        }
+        else if (c < 0x800) {
+          bytes[n++] = (byte) (0xC0 | (c >>> 6));
+          bytes[n++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if (!Character.isSurrogate(c)) {
+          bytes[n++] = (byte) (0xE0 | (c >>> 12));
+          bytes[n++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+          bytes[n++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < end
+                 && Character.isLowSurrogate((sequence != null) ? sequence.charAt(i + 1) : chars[i + 1])) {
+          final int codePoint = Character.toCodePoint(c, (sequence != null) ? sequence.charAt(++i) : chars[++i]);
+          bytes[n++] = (byte) (0xF0 | (codePoint >>> 18));
+          bytes[n++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+          bytes[n++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+          bytes[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        else {
+          bytes[n++] = (byte) '?';
+        }
+      }
+      this.ostream.write(bytes, 0, n);
+    }
+
+    private final void encodeString(Utf8String object) throws IOException {
+      if (this.strings != null) {
+        this.encodeString(object.toString());
+      }
+      else {
+        this.encodeString(object.bytes);
+      }
+    }
+
+    private final void encodeRaw(Raw object) throws IOException {
+      if (this.strings != null) {
+        this.encodeObject(decode(object.bytes));
+      }
+      else {
+        if (this.metrics != null) {
+          this.countRaw(object.bytes, 0);
+        }
+        this.ostream.write(object.bytes);
+      }
+    }
+
+    // Counts the values of an encoded fragment in the metrics like encoding
+    // them one by one would, returns the offset right after the value.
+    private final int countRaw(byte[] bytes, int offset) throws IOException {
+      final long header = header(bytes, offset, bytes.length);
+      if (header < 0L) {
+        throw new EOFException("MPack: truncated raw value");
+      }
+      final int family = FAMILIES[bytes[offset] & 0xFF];
+      final long length = headerLength(header);
+      int position = offset + headerSize(header);
+      this.metrics.value(family);
+      switch (headerKind(header)) {
+      case HEADER.ARRAY:
+      case HEADER.MAP:
+        this.metrics.enter(length);
+        for (long i = (family == Metrics.MAP) ? 2L * length : length; i != 0L; --i) {
+          position = this.countRaw(bytes, position);
+        }
+        this.metrics.leave();
+        return position;
+
+      default:
+        if (family == Metrics.STRING || family == Metrics.BINARY) {
+          this.metrics.payload(family, length);
+        }
+        else if (family == Metrics.EXTENDED) {
+          this.metrics.payload(family, length - 1L);
+        }
+        return position + (int) length;
+      }
+    }
+
+    private final void encodeBinary(byte[] object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.BINARY);
+        this.metrics.payload(Metrics.BINARY, object.length);
+      }
+      if (object.length <= 255) {
+        this.encodeBin8(object);
+      }
+      else if (object.length <= 65535) {
+        this.encodeBin16(object);
+      }
+      else {
+        this.encodeBin32(object);
+      }
+    }
+
+    private final void encodeArrayHeader(int length) throws IOException {
+      if (length <= 15) {
+        this.encodeFixArray(length);
+      }
+      else if (length <= 65535) {
+        this.encodeArray16(length);
+      }
+      else {
+        this.encodeArray32(length);
+      }
+    }
+
+    private final void encodeMapHeader(int length) throws IOException {
+      if (length <= 15) {
+        this.encodeFixMap(length);
+      }
+      else if (length <= 65535) {
+        this.encodeMap16(length);
+      }
+      else {
+        this.encodeMap32(length);
+      }
+    }
+
+    private final <T> void encodeArray(List<T> object) throws IOException {
+      final int length = object.size();
+      this.encodeArrayHeader(length);
+      if (this.isParallel(length)) {
+        this.encodeParallel(object.toArray(), false);
+        return;
+      }
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.ARRAY);
+        this.metrics.enter(length);
+      }
+      for (T item : object) {
+        this.encodeObject(item);
+      }
+      if (this.metrics != null) {
+        this.metrics.leave();
+      }
+    }
+
+    private final <K, V> void encodeMap(Map<K, V> object) throws IOException {
+      final int length = object.size();
+      this.encodeMapHeader(length);
+      if (this.isParallel(length)) {
+        this.encodeParallel(object.entrySet().toArray(), true);
+        return;
+      }
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.MAP);
+        this.metrics.enter(length);
+      }
+      for (Map.Entry<K, V> entry : object.entrySet()) {
+        this.encodeObject(entry.getKey());
+        this.encodeObject(entry.getValue());
+      }
+      if (this.metrics != null) {
+        this.metrics.leave();
+      }
+    }
+
+    // Makes the encoder split the elements of arrays and maps of at least
+    // threshold elements in chunks that are encoded in parallel on pool, then
+    // written in order after the container header. Encoders used from tasks
+    // of the pool itself fork and join their chunks, so waiting for them
+    // runs queued tasks instead of blocking a worker. It has no effect when
+    // string references or metrics are enabled, since both require values to
+    // be encoded one after the other by the same encoder. Passing a null pool
+    // encodes everything on the calling thread again.
+    public final void setParallelism(ForkJoinPool pool, int threshold) {
+      this.pool = pool;
+      this.parallelThreshold = Math.max(threshold, 2);
+    }
+
+    private final boolean isParallel(int length) {
+      return this.pool != null && length >= this.parallelThreshold && this.strings == null && this.metrics == null;
+    }
+
+    private final void encodeParallel(final Object[] items, final boolean entries) throws IOException {
+      final int chunks = Math.min(items.length, 4 * Runtime.getRuntime().availableProcessors());
+      final ArrayList<ForkJoinTask<Buffer>> buffers = new ArrayList<ForkJoinTask<Buffer>>(chunks);
+      final boolean worker = ForkJoinTask.getPool() == this.pool;
+      for (int i = 0; i != chunks; ++i) {
+        final int from = (int) ((long) items.length * i / chunks);
+        final int to = (int) ((long) items.length * (i + 1) / chunks);
+        final ForkJoinTask<Buffer> task = ForkJoinTask.adapt(new Callable<Buffer>() {
+          public Buffer call() throws IOException {
+            final Buffer buffer = new Buffer(16 * (to - from));
+            final Encoder encoder = new Encoder(buffer);
+            for (int j = from; j != to; ++j) {
+              if (entries) {
+                final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) items[j];
+                encoder.encodeObject(entry.getKey());
+                encoder.encodeObject(entry.getValue());
+              }
+              else {
+                encoder.encodeObject(items[j]);
+              }
+            }
+            return buffer;
+          }
+        });
+        if (worker) {
+          task.fork();
+        }
+        else {
+          this.pool.execute(task);
+        }
+        buffers.add(task);
+      }
+      try {
+        for (ForkJoinTask<Buffer> task : buffers) {
+          final Buffer buffer = task.get();
+          this.ostream.write(buffer.array(), 0, buffer.size());
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("MPack: interrupted while encoding");
+      }
+      catch (ExecutionException e) {
+        // Adapted callables wrap their checked exceptions.
+        final Throwable cause = (e.getCause() instanceof RuntimeException && e.getCause().getCause() instanceof IOException)
+          ? e.getCause().getCause()
+          : e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      }
+      finally {
+        for (ForkJoinTask<Buffer> task : buffers) {
+          task.cancel(false);
+        }
+      }
+    }
+
+    private final void encodeExtendedDataType(Extended object) throws IOException {
+      this.writeByte(object.type);
+      this.ostream.write(object.data);
+    }
+
+    private final void encodeFixExt1(Extended object) throws IOException {
+      this.writeByte(FIXEXT1);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeFixExt2(Extended object) throws IOException {
+      this.writeByte(FIXEXT2);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeFixExt4(Extended object) throws IOException {
+      this.writeByte(FIXEXT4);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeFixExt8(Extended object) throws IOException {
+      this.writeByte(FIXEXT8);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeFixExt16(Extended object) throws IOException {
+      this.writeByte(FIXEXT16);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeExt8(Extended object) throws IOException {
+      this.writeByte(EXT8);
+      this.writeByte(object.data.length);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeExt16(Extended object) throws IOException {
+      this.writeByte(EXT16);
+      this.writeShort(object.data.length);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeExt32(Extended object) throws IOException {
+      this.writeByte(EXT32);
+      this.writeInt(object.data.length);
+      this.encodeExtendedDataType(object);
+    }
+
+    private final void encodeExtended(Extended object) throws IOException {
+      if (this.metrics != null) {
+        this.metrics.value(Metrics.EXTENDED);
+        this.metrics.payload(Metrics.EXTENDED, object.data.length);
+      }
+      switch (object.data.length) {
+      case 1:
+        this.encodeFixExt1(object);
+        break;
+        
+      case 2:
+        this.encodeFixExt2(object);
+        break;
+        
+      case 4:
+        this.encodeFixExt4(object);
+        break;
+        
+      case 8:
+        this.encodeFixExt8(object);
+        break;
+
+      case 16:
+        this.encodeFixExt16(object);
+        break;
+
+      default:
+        if (object.data.length <= 255) {
+          this.encodeExt8(object);
+        }
+        else if (object.data.length <= 65535) {
+          this.encodeExt16(object);
+        }
+        else {
+          this.encodeExt32(object);
+        }
+      }
+    }
+
+    public final void encode(boolean object) throws IOException {
+      final long start = this.begin();
+      this.encodeBoolean(object);
+      this.end(start);
+    }
+
+    public final void encode(byte object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(short object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(int object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(long object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(float object) throws IOException {
+      final long start = this.begin();
+      this.encodeFloat(object);
+      this.end(start);
+    }
+
+    public final void encode(double object) throws IOException {
+      final long start = this.begin();
+      this.encodeFloat(object);
+      this.end(start);
+    }
+
+    public final void encode(Boolean object) throws IOException {
+      final long start = this.begin();
+      this.encodeBoolean(object);
+      this.end(start);
+    }
+
+    public final void encode(Byte object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(Short object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(Integer object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(Long object) throws IOException {
+      final long start = this.begin();
+      this.encodeInteger(object);
+      this.end(start);
+    }
+
+    public final void encode(Float object) throws IOException {
+      final long start = this.begin();
+      this.encodeFloat(object);
+      this.end(start);
+    }
+
+    public final void encode(Double object) throws IOException {
+      final long start = this.begin();
+      this.encodeFloat(object);
+      this.end(start);
+    }
+
+    public final void encode(String object) throws IOException {
+      final long start = this.begin();
+      this.encodeString(object);
+      this.end(start);
+    }
+
+    public final void encode(CharSequence object) throws IOException {
+      final long start = this.begin();
+      this.encodeChars(object, null, 0, object.length());
+      this.end(start);
+    }
+
+    public final void encode(char[] object, int offset, int length) throws IOException {
+      final long start = this.begin();
+      this.encodeChars(null, object, offset, length);
+      this.end(start);
+    }
+
+    public final void encode(byte[] object) throws IOException {
+      final long start = this.begin();
+      this.encodeBinary(object);
+      this.end(start);
+    }
+
+    public final <T> void encode(List<T> object) throws IOException {
+      final long start = this.begin();
+      this.encodeArray(object);
+      this.end(start);
+    }
+
+    public final <K, V> void encode(Map<K, V> object) throws IOException {
+      final long start = this.begin();
+      this.encodeMap(object);
+      this.end(start);
+    }
+
+    public final void encode(Extended object) throws IOException {
+      final long start = this.begin();
+      this.encodeExtended(object);
+      this.end(start);
+    }
+
+    public final void encode(Utf8String object) throws IOException {
+      final long start = this.begin();
+      this.encodeString(object);
+      this.end(start);
+    }
+
+    public final void encode(Raw object) throws IOException {
+      final long start = this.begin();
+      this.encodeRaw(object);
+      this.end(start);
+    }
+
+    public final void encode(Object object) throws IOException {
+      final long start = this.begin();
+      this.encodeObject(object);
+      this.end(start);
+    }
+
+    // Every public encode method counts as one message in the metrics, except
+    // when called by a codec to encode part of the value it was given.
+    private final long begin() {
+      return (this.metrics == null || this.nested != 0) ? 0L : this.metrics.begin();
+    }
+
+    private final void end(long start) {
+      if (this.metrics != null && this.nested == 0) {
+        this.metrics.end("encode", start);
+      }
+    }
+
+    private final void encodeObject(Object object) throws IOException {
+      if (object == null) {
+        this.encodeNil();
+        return;
+      }
+      final Dispatch dispatch = dispatches.get(object.getClass());
+      switch (dispatch.kind) {
+      case Dispatch.BOOLEAN:
+        this.encodeBoolean((Boolean) object);
+        break;
+
+      case Dispatch.BYTE:
+        this.encodeInteger((Byte) object);
+        break;
+
+      case Dispatch.SHORT:
+        this.encodeInteger((Short) object);
+        break;
+
+      case Dispatch.INTEGER:
+        this.encodeInteger((Integer) object);
+        break;
+
+      case Dispatch.LONG:
+        this.encodeInteger((Long) object);
+        break;
+
+      case Dispatch.FLOAT:
+        this.encodeFloat((Float) object);
+        break;
+
+      case Dispatch.DOUBLE:
+        this.encodeFloat((Double) object);
+        break;
+
+      case Dispatch.STRING:
+        this.encodeString((String) object);
+        break;
+
+      case Dispatch.BINARY:
+        this.encodeBinary((byte[]) object);
+        break;
+
+      case Dispatch.LIST:
+        this.encodeArray((List<?>) object);
+        break;
+
+      case Dispatch.MAP:
+        this.encodeMap((Map<?, ?>) object);
+        break;
+
+      case Dispatch.EXTENDED:
+        this.encodeExtended((Extended) object);
+        break;
+
+      case Dispatch.UTF8STRING:
+        this.encodeString((Utf8String) object);
+        break;
+
+      case Dispatch.RAW:
+        this.encodeRaw((Raw) object);
+        break;
+
+      case Dispatch.CHARS:
+        this.encodeChars((CharSequence) object, null, 0, ((CharSequence) object).length());
+        break;
+
+      case Dispatch.CODEC:
+        ++this.nested;
+        try {
+          dispatch.codec.encode(this, object);
+        }
+        finally {
+          --this.nested;
+        }
+        break;
+
+      default:
+        throw new IllegalArgumentException("MPack: no encoding available for objects of type " + object.getClass().toString());
+      }
+    }
+
+    public final void flush() throws IOException {
+      this.ostream.flush();
+    }
+
+  }
+
+  // Turns a stream of byte chunks into the values they encode. Values can span
+  // any number of chunks, and a new chunk is only requested from upstream
+  // once every value decoded so far has been delivered, so at most one chunk
+  // worth of values is buffered. The scan for the end of a value resumes
+  // where the previous chunk left it, so a value split in many chunks is
+  // still only scanned once. Since Flow subscribers can't receive null,
+  // top-level nil values are delivered as DecodingProcessor.NIL.
+  public static class DecodingProcessor implements Flow.Processor<ByteBuffer, Object> {
+    public static final Object NIL = new Object();
+
+    private final ConcurrentLinkedQueue<Object> values = new ConcurrentLinkedQueue<Object>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super Object> downstream;
+    private volatile boolean fetching;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile Throwable error;
+    // Set by an invalid request, signalled before any queued value.
+    private volatile Throwable violation;
+    private byte[] bytes = new byte[4096];
+    private int start;
+    private int end;
+    // Where the scan of the value at start stopped, and how many values are
+    // still to be skipped from there before it ends (0 when not started).
+    private int scanned;
+    private long unscanned;
+
+    public void subscribe(Flow.Subscriber<? super Object> subscriber) {
+      if (this.downstream != null) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+          public void request(long n) { }
+          public void cancel() { }
+        });
+        subscriber.onError(new IllegalStateException("MPack: processor already has a subscriber"));
+        return;
+      }
+      this.downstream = subscriber;
+      subscriber.onSubscribe(new Flow.Subscription() {
+        public void request(long n) {
+          if (n <= 0L) {
+            DecodingProcessor.this.violation = new IllegalArgumentException("MPack: non-positive request: " + n);
+          }
+          else {
+            addRequest(DecodingProcessor.this.requested, n);
+          }
+          DecodingProcessor.this.drain();
+        }
+
+        public void cancel() {
+          DecodingProcessor.this.cancel();
+        }
+      });
+      this.drain();
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+      if (this.upstream != null) {
+        subscription.cancel();
+        return;
+      }
+      this.upstream = subscription;
+      this.drain();
+    }
+
+    public void onNext(ByteBuffer chunk) {
+      if (this.done) {
+        return;
+      }
+      final int length = chunk.remaining();
+      if (this.bytes.length - this.end < length) {
+        final int used = this.end - this.start;
+        final byte[] bytes = (this.bytes.length - used < length)
+          ? new byte[Math.max(used + length, 2 * this.bytes.length)]
+          : this.bytes;
+        System.arraycopy(this.bytes, this.start, bytes, 0, used);
+        this.bytes = bytes;
+        this.scanned -= this.start;
+        this.start = 0;
+        this.end = used;
+      }
+      chunk.get(this.bytes, this.end, length);
+      this.end += length;
+      try {
+        int next;
+        while ((next = this.scan()) >= 0) {
+          final Object value = decode(new ByteArrayInputStream(this.bytes, this.start, next - this.start));
+          this.values.add(value == null ? NIL : value);
+          this.start = next;
+        }
+      }
+      catch (IOException e) {
+        this.upstream.cancel();
+        this.error = e;
+        this.done = true;
+      }
+      this.fetching = false;
+      this.drain();
+    }
+
+    // Returns the end of the value at start, or -1 if it isn't complete yet,
+    // like skip but resuming from the previous call.
+    private final int scan() throws IOException {
+      if (this.unscanned == 0L) {
+        this.scanned = this.start;
+        this.unscanned = 1L;
+      }
+      while (this.unscanned != 0L) {
+        final long header = header(this.bytes, this.scanned, this.end);
+        if (header < 0L) {
+          return -1;
+        }
+        long position = this.scanned + headerSize(header);
+        long pending = this.unscanned - 1L;
+        switch (headerKind(header)) {
+        case HEADER.ARRAY:
+          pending += headerLength(header);
+          break;
+
+        case HEADER.MAP:
+          pending += 2L * headerLength(header);
+          break;
+
+        default:
+          position += headerLength(header);
+        }
+        if (position > this.end) {
+          return -1;
+        }
+        this.scanned = (int) position;
+        this.unscanned = pending;
+      }
+      return this.scanned;
+    }
+
+    public void onError(Throwable error) {
+      this.error = error;
+      this.done = true;
+      this.drain();
+    }
+
+    public void onComplete() {
+      if (this.start != this.end && this.error == null) {
+        this.error = new EOFException("MPack: stream ended in the middle of a value");
+      }
+      this.done = true;
+      this.drain();
+    }
+
+    private final void cancel() {
+      this.cancelled = true;
+      final Flow.Subscription upstream = this.upstream;
+      if (upstream != null) {
+        upstream.cancel();
+      }
+    }
+
+    private final void drain() {
+      if (this.pending.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        final Flow.Subscriber<? super Object> downstream = this.downstream;
+        if (downstream != null && !this.cancelled && this.violation != null) {
+          this.cancel();
+          this.values.clear();
+          downstream.onError(this.violation);
+        }
+        if (downstream != null && !this.cancelled) {
+          final long requested = this.requested.get();
+          long delivered = 0L;
+          Object value;
+          while (delivered != requested && !this.cancelled && (value = this.values.poll()) != null) {
+            downstream.onNext(value);
+            ++delivered;
+          }
+          if (delivered != 0L && requested != Long.MAX_VALUE) {
+            this.requested.addAndGet(-delivered);
+          }
+          if (this.values.isEmpty() && !this.cancelled) {
+            if (this.done) {
+              this.cancelled = true;
+              if (this.error != null) {
+                downstream.onError(this.error);
+              }
+              else {
+                downstream.onComplete();
+              }
+            }
+            else if (this.requested.get() != 0L && this.upstream != null && !this.fetching) {
+              this.fetching = true;
+              this.upstream.request(1L);
+            }
+          }
+        }
+        missed = this.pending.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+
+  // Encodes each value it receives into its own buffer, demand from the
+  // downstream subscriber is forwarded as is since every value produces
+  // exactly one buffer. Completion and errors that come before a subscriber
+  // are kept and signalled to it once it subscribes.
+  public static class EncodingProcessor implements Flow.Processor<Object, ByteBuffer> {
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger terminated = new AtomicInteger();
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+    private volatile boolean done;
+    private volatile boolean completed;
+    private volatile Throwable error;
+
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      if (this.downstream != null) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+          public void request(long n) { }
+          public void cancel() { }
+        });
+        subscriber.onError(new IllegalStateException("MPack: processor already has a subscriber"));
+        return;
+      }
+      this.downstream = subscriber;
+      subscriber.onSubscribe(new Flow.Subscription() {
+        public void request(long n) {
+          final Flow.Subscription upstream = EncodingProcessor.this.upstream;
+          if (upstream != null) {
+            upstream.request(n);
+          }
+          else {
+            addRequest(EncodingProcessor.this.requested, n);
+            EncodingProcessor.this.forward();
+          }
+        }
+
+        public void cancel() {
+          EncodingProcessor.this.done = true;
+          final Flow.Subscription upstream = EncodingProcessor.this.upstream;
+          if (upstream != null) {
+            upstream.cancel();
+          }
+        }
+      });
+      this.terminate();
+    }
+
+    // Signals completion or the error to the subscriber, once, as soon as
+    // both are there.
+    private final void terminate() {
+      final Flow.Subscriber<? super ByteBuffer> downstream = this.downstream;
+      if (downstream == null || (this.error == null && !this.completed) || !this.terminated.compareAndSet(0, 1)) {
+        return;
+      }
+      if (this.error != null) {
+        downstream.onError(this.error);
+      }
+      else {
+        downstream.onComplete();
+      }
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+      if (this.upstream != null) {
+        subscription.cancel();
+        return;
+      }
+      this.upstream = subscription;
+      this.forward();
+    }
+
+    private final void forward() {
+      final Flow.Subscription upstream = this.upstream;
+      if (upstream != null) {
+        final long n = this.requested.getAndSet(0L);
+        if (n != 0L) {
+          upstream.request(n);
+        }
+      }
+    }
+
+    public void onNext(Object object) {
+      if (this.done) {
+        return;
+      }
+      final ByteBuffer buffer;
+      try {
+        buffer = ByteBuffer.wrap(encode(object == DecodingProcessor.NIL ? null : object));
+      }
+      catch (IOException e) {
+        this.done = true;
+        this.upstream.cancel();
+        this.downstream.onError(e);
+        return;
+      }
+      this.downstream.onNext(buffer);
+    }
+
+    public void onError(Throwable error) {
+      if (!this.done) {
+        this.done = true;
+        this.error = error;
+        this.terminate();
+      }
+    }
+
+    public void onComplete() {
+      if (!this.done) {
+        this.done = true;
+        this.completed = true;
+        this.terminate();
+      }
+    }
+  }
+
+  private static void addRequest(AtomicLong requested, long n) {
+    long current;
+    long next;
+    do {
+      current = requested.get();
+      next = current + n;
+      if (next < 0L) {
+        next = Long.MAX_VALUE;
+      }
+    } while (!requested.compareAndSet(current, next));
+  }
+
+  // Dependency-free LZ77 block codec using the LZ4 block format: sequences of
+  // a token (literal and match length nibbles), literals and a 2 bytes
+  // little-endian match offset, ending with a literals-only sequence.
+  public static class LZ {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    private static final int HASH_BITS = 12;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+
+    private LZ() { }
+
+    public static int maxCompressedLength(int length) {
+      return length + length / 255 + 16;
+    }
+
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+      return compress(src, srcOff, srcLen, dst, dstOff, new int[1 << HASH_BITS]);
+    }
+
+    private static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+      Arrays.fill(table, -1);
+      final int end = srcOff + srcLen;
+      // Matches can't start in the last 12 bytes nor cover the last 5 bytes,
+      // which keeps the format compatible with LZ4 decoders.
+      final int limit = end - 12;
+      int anchor = srcOff;
+      int i = srcOff;
+      int o = dstOff;
+      while (i < limit) {
+        final int sequence = readIntLE(src, i);
+        final int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+        final int ref = table[hash];
+        table[hash] = i;
+        if (ref < 0 || i - ref > MAX_OFFSET || readIntLE(src, ref) != sequence) {
+          i += 1 + ((i - anchor) >>> 6);
+          continue;
+        }
+        int length = MIN_MATCH;
+        while (i + length < end - 5 && src[ref + length] == src[i + length]) {
+          ++length;
+        }
+        o = writeSequence(src, anchor, i - anchor, dst, o, length - MIN_MATCH);
+        dst[o++] = (byte) (i - ref);
+        dst[o++] = (byte) ((i - ref) >>> 8);
+        o = writeLength(dst, o, length - MIN_MATCH);
+        i += length;
+        anchor = i;
+      }
+      o = writeSequence(src, anchor, end - anchor, dst, o, 0);
+      return o - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int literals, int count, byte[] dst, int o, int match) {
+      dst[o++] = (byte) ((Math.min(count, 15) << 4) | Math.min(match, 15));
+      o = writeLength(dst, o, count);
+      System.arraycopy(src, literals, dst, o, count);
+      return o + count;
+    }
+
+    private static int writeLength(byte[] dst, int o, int length) {
+      if (length >= 15) {
+        length -= 15;
+        while (length >= 255) {
+          dst[o++] = (byte) 255;
+          length -= 255;
+        }
+        dst[o++] = (byte) length;
+      }
+      return o;
+    }
+
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+      final int end = srcOff + srcLen;
+      final int limit = dstOff + dstLen;
+      int i = srcOff;
+      int o = dstOff;
+      try {
+        while (true) {
+          final int token = src[i++] & 0xFF;
+          int literals = token >>> 4;
+          if (literals == 15) {
+            int b;
+            do {
+              b = src[i++] & 0xFF;
+              literals += b;
+            } while (b == 255);
+          }
+          if (literals > end - i || literals > limit - o) {
+            throw new IOException("MPack: corrupt compressed block");
+          }
+          System.arraycopy(src, i, dst, o, literals);
+          i += literals;
+          o += literals;
+          if (i == end) {
+            break;
+          }
+          final int offset = (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8);
+          i += 2;
+          int length = token & 15;
+          if (length == 15) {
+            int b;
+            do {
+              b = src[i++] & 0xFF;
+              length += b;
+            } while (b == 255);
+          }
+          length += MIN_MATCH;
+          final int ref = o - offset;
+          if (offset == 0 || ref < dstOff || length > limit - o) {
+            throw new IOException("MPack: corrupt compressed block");
+          }
+          if (offset >= length) {
+            System.arraycopy(dst, ref, dst, o, length);
+          }
+          else {
+            for (int k = 0; k != length; ++k) {
+              dst[o + k] = dst[ref + k];
+            }
+          }
+          o += length;
+        }
+      }
+      catch (ArrayIndexOutOfBoundsException e) {
+        throw new IOException("MPack: corrupt compressed block");
+      }
+      if (o != limit) {
+        throw new IOException("MPack: corrupt compressed block");
+      }
+      return dstLen;
+    }
+
+    private static int readIntLE(byte[] bytes, int offset) {
+      return (bytes[offset] & 0xFF)
+        | ((bytes[offset + 1] & 0xFF) << 8)
+        | ((bytes[offset + 2] & 0xFF) << 16)
+        | ((bytes[offset + 3] & 0xFF) << 24);
+    }
+
+    // Frames are made of blocks starting with the raw and compressed lengths
+    // as 4 bytes big-endian integers, blocks that don't compress are stored
+    // as is with both lengths equal.
+    private static int writeBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int[] table) {
+      int length = compress(src, srcOff, srcLen, dst, 8, table);
+      if (length >= srcLen) {
+        System.arraycopy(src, srcOff, dst, 8, srcLen);
+        length = srcLen;
+      }
+      for (int i = 0; i != 4; ++i) {
+        dst[i]     = (byte) (srcLen >>> (24 - 8 * i));
+        dst[i + 4] = (byte) (length >>> (24 - 8 * i));
+      }
+      return length + 8;
+    }
+
+    // Compresses independent blocks of the given data in parallel, producing
+    // the same frames as a CompressedOutputStream with the same block size.
+    public static byte[] compress(final byte[] data, final int blockSize, ExecutorService executor) throws IOException {
+      final ArrayList<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+      for (int offset = 0; offset < data.length; offset += blockSize) {
+        final int blockOffset = offset;
+        final int blockLength = Math.min(blockSize, data.length - offset);
+        blocks.add(executor.submit(new Callable<byte[]>() {
+          public byte[] call() {
+            final byte[] block = new byte[8 + maxCompressedLength(blockLength)];
+            return Arrays.copyOf(block, writeBlock(data, blockOffset, blockLength, block, new int[1 << HASH_BITS]));
+          }
+        }));
+      }
+      final ByteArrayOutputStream ostream = new ByteArrayOutputStream(data.length / 2 + 16);
+      try {
+        for (Future<byte[]> block : blocks) {
+          ostream.write(block.get());
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("MPack: interrupted while compressing");
+      }
+      catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      return ostream.toByteArray();
+    }
+  }
+
+  public static class CompressedOutputStream extends OutputStream {
+    private final OutputStream ostream;
+    private final byte[] buffer;
+    private final byte[] block;
+    private final int[] table = new int[1 << LZ.HASH_BITS];
+    private int length;
+
+    public CompressedOutputStream(OutputStream ostream) {
+      this(ostream, LZ.DEFAULT_BLOCK_SIZE);
+    }
+
+    public CompressedOutputStream(OutputStream ostream, int blockSize) {
+      this.ostream = ostream;
+      this.buffer = new byte[blockSize];
+      this.block = new byte[8 + LZ.maxCompressedLength(blockSize)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (this.length == this.buffer.length) {
+        this.writeBlock();
+      }
+      this.buffer[this.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len != 0) {
+        if (this.length == this.buffer.length) {
+          this.writeBlock();
+        }
+        final int n = Math.min(len, this.buffer.length - this.length);
+        System.arraycopy(b, off, this.buffer, this.length, n);
+        this.length += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private final void writeBlock() throws IOException {
+      if (this.length != 0) {
+        this.ostream.write(this.block, 0, LZ.writeBlock(this.buffer, 0, this.length, this.block, this.table));
+        this.length = 0;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      this.writeBlock();
+      this.ostream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.flush();
+      this.ostream.close();
+    }
+  }
+
+  // Decompresses one block at a time into the buffer that reads are served
+  // from, so a Decoder reading from this stream consumes decompressed bytes
+  // without any intermediate copy. Blocks larger than maxBlockSize, the block
+  // size the stream was written with, are rejected before anything is
+  // allocated for them.
+  public static class CompressedInputStream extends InputStream {
+    private final DataInputStream istream;
+    private final int maxBlockSize;
+    private byte[] buffer = new byte[0];
+    private byte[] block = new byte[0];
+    private int position;
+    private int length;
+
+    public CompressedInputStream(InputStream istream) {
+      this(istream, LZ.DEFAULT_BLOCK_SIZE);
+    }
+
+    public CompressedInputStream(InputStream istream, int maxBlockSize) {
+      this.istream = new DataInputStream(istream);
+      this.maxBlockSize = maxBlockSize;
+    }
+
+    private final boolean readBlock() throws IOException {
+      // Only a stream ending right at a block boundary ends cleanly.
+      final int first = this.istream.read();
+      if (first < 0) {
+        return false;
+      }
+      final int rawLength = (first << 24) | (this.istream.readUnsignedByte() << 16) | this.istream.readUnsignedShort();
+      final int length = this.istream.readInt();
+      if (rawLength < 0 || length < 0 || length > LZ.maxCompressedLength(rawLength)) {
+        throw new IOException("MPack: corrupt compressed block header");
+      }
+      if (rawLength > this.maxBlockSize) {
+        throw new IOException("MPack: compressed block of " + rawLength + " bytes exceeds the maximum block size " + this.maxBlockSize);
+      }
+      if (this.buffer.length < rawLength) {
+        this.buffer = new byte[rawLength];
+      }
+      if (length == rawLength) {
+        this.istream.readFully(this.buffer, 0, rawLength);
+      }
+      else {
+        if (this.block.length < length) {
+          this.block = new byte[length];
+        }
+        this.istream.readFully(this.block, 0, length);
+        LZ.decompress(this.block, 0, length, this.buffer, 0, rawLength);
+      }
+      this.position = 0;
+      this.length = rawLength;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      while (this.position == this.length) {
+        if (!this.readBlock()) {
+          return -1;
+        }
+      }
+      return this.buffer[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (this.position == this.length) {
+        if (!this.readBlock()) {
+          return -1;
+        }
+      }
+      final int n = Math.min(len, this.length - this.position);
+      System.arraycopy(this.buffer, this.position, b, off, n);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return this.length - this.position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.istream.close();
+    }
+  }
+
+  // Lets any number of threads write messages to one output: each thread
+  // encodes into its own buffer, completed messages are published to a
+  // lock-free queue, and a single drainer thread writes them out in batches
+  // (with one gathering write per batch on file channels). Writers block
+  // while more than maxPending messages are waiting to be written. Every
+  // write that returns before or while the writer is closed is written, the
+  // ones that start after it is closed throw.
+  public static class LogWriter implements Closeable {
+    private static final int MAX_BATCH = 1024;
+
+    private final OutputStream ostream;
+    private final FileChannel channel;
+    private final int maxPending;
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicInteger writers = new AtomicInteger();
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+      @Override
+      protected Buffer initialValue() {
+        return new Buffer(256);
+      }
+    };
+    private final Thread drainer;
+    private volatile long written;
+    private volatile boolean idle;
+    private volatile boolean closed;
+    private volatile IOException error;
+
+    public LogWriter(OutputStream ostream) {
+      this(ostream, null, 65536);
+    }
+
+    public LogWriter(FileChannel channel) {
+      this(null, channel, 65536);
+    }
+
+    public LogWriter(OutputStream ostream, int maxPending) {
+      this(ostream, null, maxPending);
+    }
+
+    public LogWriter(FileChannel channel, int maxPending) {
+      this(null, channel, maxPending);
+    }
+
+    private LogWriter(OutputStream ostream, FileChannel channel, int maxPending) {
+      this.ostream = (ostream == null) ? null : new BufferedOutputStream(ostream, 65536);
+      this.channel = channel;
+      this.maxPending = maxPending;
+      this.drainer = new Thread(new Runnable() {
+        public void run() {
+          LogWriter.this.drain();
+        }
+      }, "mpack-log-writer");
+      this.drainer.setDaemon(true);
+      this.drainer.start();
+    }
+
+    public final void write(Object object) throws IOException {
+      // The drainer doesn't stop while writers that got past the closed
+      // check are still publishing.
+      this.writers.incrementAndGet();
+      try {
+        if (this.error != null) {
+          throw this.error;
+        }
+        if (this.closed) {
+          throw new IOException("MPack: log writer is closed");
+        }
+        final Buffer buffer = this.buffers.get();
+        buffer.reset();
+        MPack.encode(object, buffer);
+        if (this.published.get() - this.written >= this.maxPending) {
+          this.await();
+        }
+        this.queue.add(buffer.toByteArray());
+        this.published.incrementAndGet();
+      }
+      finally {
+        this.writers.decrementAndGet();
+      }
+      if (this.idle) {
+        LockSupport.unpark(this.drainer);
+      }
+    }
+
+    // Blocks until fewer than maxPending messages are waiting, the drainer
+    // notifies the writer after each batch. Throws if the drainer failed
+    // since the message could never be written.
+    private final void await() throws IOException {
+      synchronized (this) {
+        while (this.published.get() - this.written >= this.maxPending && this.error == null) {
+          LockSupport.unpark(this.drainer);
+          try {
+            this.wait();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("MPack: interrupted while waiting to write");
+          }
+        }
+      }
+      if (this.error != null) {
+        throw this.error;
+      }
+    }
+
+    // Blocks until every message published before the call has been written
+    // and flushed to the underlying output.
+    public final void flush() throws IOException {
+      final long target = this.published.get();
+      synchronized (this) {
+        while (this.written < target && this.error == null) {
+          LockSupport.unpark(this.drainer);
+          try {
+            this.wait(10L);
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("MPack: interrupted while flushing");
+          }
+        }
+      }
+      if (this.error != null) {
+        throw this.error;
+      }
+    }
+
+    public final void close() throws IOException {
+      this.closed = true;
+      LockSupport.unpark(this.drainer);
+      try {
+        this.drainer.join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("MPack: interrupted while closing");
+      }
+      if (this.ostream != null) {
+        this.ostream.close();
+      }
+      else {
+        this.channel.close();
+      }
+      if (this.error != null) {
+        throw this.error;
+      }
+    }
+
+    private final void drain() {
+      final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+      while (true) {
+        int count = 0;
+        byte[] message;
+        while (count != MAX_BATCH && (message = this.queue.poll()) != null) {
+          batch[count++] = ByteBuffer.wrap(message);
+        }
+        if (count == 0) {
+          if (this.closed && this.writers.get() == 0 && this.queue.isEmpty()) {
+            return;
+          }
+          this.idle = true;
+          if (this.queue.isEmpty() && (!this.closed || this.writers.get() != 0)) {
+            LockSupport.parkNanos(this, 1000000L);
+          }
+          this.idle = false;
+          continue;
+        }
+        try {
+          this.writeBatch(batch, count);
+        }
+        catch (IOException e) {
+          this.error = e;
+          this.queue.clear();
+          synchronized (this) {
+            this.notifyAll();
+          }
+          return;
+        }
+        finally {
+          Arrays.fill(batch, 0, count, null);
+        }
+        this.written += count;
+        synchronized (this) {
+          this.notifyAll();
+        }
+      }
+    }
+
+    private final void writeBatch(ByteBuffer[] batch, int count) throws IOException {
+      if (this.channel != null) {
+        int first = 0;
+        while (first != count) {
+          this.channel.write(batch, first, count - first);
+          while (first != count && !batch[first].hasRemaining()) {
+            ++first;
+          }
+        }
+      }
+      else {
+        for (int i = 0; i != count; ++i) {
+          this.ostream.write(batch[i].array());
+        }
+        this.ostream.flush();
+      }
+    }
+  }
+
+  // Transcodes between MessagePack and JSON one value at a time without
+  // building the decoded tree. Binary values are written as base64 strings or
+  // arrays of bytes, and extension values as objects with type and data
+  // fields or as [type, data] arrays, depending on the configured formats.
+  // Map keys that aren't strings are written as their JSON text, and floating
+  // point values that JSON can't represent (NaN and infinities) as null.
+  public static class Json {
+    public static final int BASE64 = 0;
+    public static final int ARRAY  = 1;
+    public static final int OBJECT = 2;
+
+    public int binaryFormat = BASE64;
+    public int extendedFormat = OBJECT;
+
+    public final void toJson(Decoder decoder, Appendable out) throws IOException {
+      this.writeValue(decoder, decoder.istream.readUnsignedByte(), out);
+    }
+
+    public final String toJson(byte[] bytes) throws IOException {
+      final StringBuilder out = new StringBuilder(2 * bytes.length);
+      this.toJson(new Decoder(new ByteArrayInputStream(bytes)), out);
+      return out.toString();
+    }
+
+    private final void writeValue(Decoder decoder, int tag, Appendable out) throws IOException {
+      final int info = HEADERS[tag];
+      if (info < 0) {
+        throw new IOException("MPack: decoder found unknown tag: " + tag);
+      }
+      final int kind = info & 0xFF;
+      if (kind == HEADER.ARRAY || kind == HEADER.MAP) {
+        final long length = this.readLength(decoder, info);
+        out.append(kind == HEADER.ARRAY ? '[' : '{');
+        for (long i = 0L; i != length; ++i) {
+          if (i != 0L) {
+            out.append(',');
+          }
+          if (kind == HEADER.MAP) {
+            this.writeKey(decoder, out);
+            out.append(':');
+          }
+          this.writeValue(decoder, decoder.istream.readUnsignedByte(), out);
+        }
+        out.append(kind == HEADER.ARRAY ? ']' : '}');
+        return;
+      }
+      final Object value = decoder.decodeValue(tag);
+      if (tag == UINT64) {
+        // Decoded as a signed Long, which is negative above Long.MAX_VALUE.
+        out.append(Long.toUnsignedString((Long) value));
+        return;
+      }
+      this.writeObject(value, out);
+    }
+
+    private final long readLength(Decoder decoder, int info) throws IOException {
+      final int width = (info >>> 8) & 0xFF;
+      long length = info >>> 16;
+      for (int i = 0; i != width; ++i) {
+        length = (length << 8) | decoder.istream.readUnsignedByte();
+      }
+      return length;
+    }
+
+    // Keys that don't decode to a string, string references and lazy strings
+    // included, are written as the string of their JSON representation.
+    private final void writeKey(Decoder decoder, Appendable out) throws IOException {
+      final int tag = decoder.istream.readUnsignedByte();
+      final int kind = HEADERS[tag] & 0xFF;
+      if (kind == HEADER.ARRAY || kind == HEADER.MAP) {
+        final StringBuilder key = new StringBuilder();
+        this.writeValue(decoder, tag, key);
+        writeString(key, out);
+        return;
+      }
+      final Object key = decoder.decodeValue(tag);
+      if (key instanceof CharSequence) {
+        writeString(key.toString(), out);
+      }
+      else if (tag == UINT64) {
+        writeString(Long.toUnsignedString((Long) key), out);
+      }
+      else {
+        final StringBuilder string = new StringBuilder();
+        this.writeObject(key, string);
+        writeString(string, out);
+      }
+    }
+
+    private final void writeObject(Object object, Appendable out) throws IOException {
+      if (object == null) {
+        out.append("null");
+      }
+      else if (object instanceof CharSequence) {
+        writeString(object.toString(), out);
+      }
+      else if (object instanceof Double || object instanceof Float) {
+        final double value = ((Number) object).doubleValue();
+        out.append((Double.isNaN(value) || Double.isInfinite(value)) ? "null" : object.toString());
+      }
+      else if (object instanceof byte[]) {
+        this.writeBinary((byte[]) object, out);
+      }
+      else if (object instanceof Extended) {
+        final Extended extended = (Extended) object;
+        if (this.extendedFormat == OBJECT) {
+          out.append("{\"type\":").append(Integer.toString(extended.type)).append(",\"data\":");
+          this.writeBinary(extended.data, out);
+          out.append('}');
+        }
+        else {
+          out.append('[').append(Integer.toString(extended.type)).append(',');
+          this.writeBinary(extended.data, out);
+          out.append(']');
+        }
+      }
+      else {
+        out.append(object.toString());
+      }
+    }
+
+    private final void writeBinary(byte[] bytes, Appendable out) throws IOException {
+      if (this.binaryFormat == BASE64) {
+        out.append('"').append(Base64.getEncoder().encodeToString(bytes)).append('"');
+      }
+      else {
+        out.append('[');
+        for (int i = 0; i != bytes.length; ++i) {
+          if (i != 0) {
+            out.append(',');
+          }
+          out.append(Integer.toString(bytes[i] & 0xFF));
+        }
+        out.append(']');
+      }
+    }
+
+    private static void writeString(CharSequence string, Appendable out) throws IOException {
+      out.append('"');
+      int copied = 0;
+      for (int i = 0; i != string.length(); ++i) {
+        final char c = string.charAt(i);
+        if (c >= 0x20 && c != '"' && c != '\\') {
+          continue;
+        }
+        out.append(string, copied, i);
+        switch (c) {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        default:
+          out.append(String.format("\\u%04x", (int) c));
+        }
+        copied = i + 1;
+      }
+      out.append(string, copied, string.length()).append('"');
+    }
+
+    // Parses one JSON value and writes it to the encoder. Containers are
+    // written with 32 bits headers to a buffer and patched once their size is
+    // known, then the value is encoded again with the encoder, as one message,
+    // so its headers take the smallest form and its strings go through the
+    // encoder's string references and metrics. What follows the value is left in the reader, so values
+    // can be read one after the other. Numbers end at the first character
+    // that can't be part of them, which is given back to the reader with
+    // mark and reset, or unread when it is a PushbackReader; with any other
+    // reader the character after a top-level number is lost.
+    public final void fromJson(Reader in, Encoder encoder) throws IOException {
+      final Parser parser = new Parser(in);
+      parser.parseValue(parser.next());
+      final long start = encoder.begin();
+      compact(new Decoder(new ByteArrayInputStream(parser.buffer.array(), 0, parser.buffer.size())), encoder);
+      encoder.end(start);
+    }
+
+    // Parses a string holding exactly one JSON value, anything but
+    // whitespace after it is an error.
+    public final byte[] fromJson(String json) throws IOException {
+      final Parser parser = new Parser(new StringReader(json));
+      parser.parseValue(parser.next());
+      if (parser.next() >= 0) {
+        throw parser.error("unexpected characters after value");
+      }
+      final ByteArrayOutputStream ostream = new ByteArrayOutputStream(json.length());
+      final Encoder encoder = new Encoder(ostream);
+      compact(new Decoder(new ByteArrayInputStream(parser.buffer.array(), 0, parser.buffer.size())), encoder);
+      encoder.flush();
+      return ostream.toByteArray();
+    }
+
+    private static void compact(Decoder decoder, Encoder encoder) throws IOException {
+      final int tag = decoder.istream.readUnsignedByte();
+      if (tag != ARRAY32 && tag != MAP32) {
+        encoder.encodeObject(decoder.decodeValue(tag));
+        return;
+      }
+      final int length = decoder.istream.readInt();
+      if (tag == ARRAY32) {
+        encoder.encodeArrayHeader(length);
+      }
+      else {
+        encoder.encodeMapHeader(length);
+      }
+      if (encoder.metrics != null) {
+        encoder.metrics.value(tag == ARRAY32 ? Metrics.ARRAY : Metrics.MAP);
+        encoder.metrics.enter(length);
+      }
+      for (long i = (tag == ARRAY32) ? length : 2L * length; i != 0L; --i) {
+        compact(decoder, encoder);
+      }
+      if (encoder.metrics != null) {
+        encoder.metrics.leave();
+      }
+    }
+
+    private static class Parser {
+      private final Reader in;
+      private final Buffer buffer = new Buffer(256);
+      private final Encoder encoder = new Encoder(this.buffer);
+      private final StringBuilder text = new StringBuilder();
+      private int pushback = -1;
+
+      Parser(Reader in) {
+        this.in = in;
+      }
+
+      private final int read() throws IOException {
+        if (this.pushback >= 0) {
+          final int c = this.pushback;
+          this.pushback = -1;
+          return c;
+        }
+        return this.in.read();
+      }
+
+      // Returns the next character without consuming it from the reader.
+      private final int peek() throws IOException {
+        if (this.pushback >= 0) {
+          return this.pushback;
+        }
+        if (this.in.markSupported()) {
+          this.in.mark(1);
+          final int c = this.in.read();
+          this.in.reset();
+          return c;
+        }
+        final int c = this.in.read();
+        if (c >= 0) {
+          if (this.in instanceof PushbackReader) {
+            ((PushbackReader) this.in).unread(c);
+          }
+          else {
+            this.pushback = c;
+          }
+        }
+        return c;
+      }
+
+      private final int next() throws IOException {
+        int c;
+        do {
+          c = this.read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+      }
+
+      private final IOException error(String message) {
+        return new IOException("MPack: invalid JSON: " + message);
+      }
+
+      private final void expect(String literal) throws IOException {
+        for (int i = 1; i != literal.length(); ++i) {
+          if (this.read() != literal.charAt(i)) {
+            throw this.error("expected " + literal);
+          }
+        }
+      }
+
+      private final void parseValue(int c) throws IOException {
+        switch (c) {
+        case '{':
+          this.parseContainer(MAP32, '}');
+          break;
+        case '[':
+          this.parseContainer(ARRAY32, ']');
+          break;
+        case '"':
+          this.encoder.encode(this.parseString());
+          break;
+        case 't':
+          this.expect("true");
+          this.encoder.encode(true);
+          break;
+        case 'f':
+          this.expect("false");
+          this.encoder.encode(false);
+          break;
+        case 'n':
+          this.expect("null");
+          this.encoder.encode((Object) null);
+          break;
+        default:
+          if (c == '-' || (c >= '0' && c <= '9')) {
+            this.parseNumber(c);
+          }
+          else {
+            throw this.error((c < 0) ? "unexpected end of input" : "unexpected character '" + (char) c + "'");
+          }
+        }
+      }
+
+      private final void parseContainer(int tag, char close) throws IOException {
+        final int offset = this.buffer.size();
+        this.encoder.ostream.writeByte(tag);
+        this.encoder.ostream.writeInt(0);
+        int count = 0;
+        int c = this.next();
+        if (c != close) {
+          while (true) {
+            if (tag == MAP32) {
+              if (c != '"') {
+                throw this.error("expected object key");
+              }
+              this.encoder.encode(this.parseString());
+              if (this.next() != ':') {
+                throw this.error("expected ':'");
+              }
+              c = this.next();
+            }
+            this.parseValue(c);
+            ++count;
+            c = this.next();
+            if (c == close) {
+              break;
+            }
+            if (c != ',') {
+              throw this.error("expected ',' or '" + close + "'");
+            }
+            c = this.next();
+          }
+        }
+        this.buffer.putInt(offset + 1, count);
+      }
+
+      private final String parseString() throws IOException {
+        this.text.setLength(0);
+        while (true) {
+          final int c = this.read();
+          if (c == '"') {
+            return this.text.toString();
+          }
+          if (c < 0) {
+            throw this.error("unterminated string");
+          }
+          if (c != '\\') {
+            this.text.append((char) c);
+            continue;
+          }
+          final int e = this.read();
+          switch (e) {
+          case '"':
+          case '\\':
+          case '/':
+            this.text.append((char) e);
+            break;
+          case 'b':
+            this.text.append('\b');
+            break;
+          case 'f':
+            this.text.append('\f');
+            break;
+          case 'n':
+            this.text.append('\n');
+            break;
+          case 'r':
+            this.text.append('\r');
+            break;
+          case 't':
+            this.text.append('\t');
+            break;
+          case 'u': {
+            int code = 0;
+            for (int i = 0; i != 4; ++i) {
+              final int digit = Character.digit(this.read(), 16);
+              if (digit < 0) {
+                throw this.error("invalid unicode escape");
+              }
+              code = (code << 4) | digit;
+            }
+            this.text.append((char) code);
+            break;
+          }
+          default:
+            throw this.error("invalid escape sequence");
+          }
+        }
+      }
+
+      private final void parseNumber(int c) throws IOException {
+        this.text.setLength(0);
+        boolean integral = true;
+        while (true) {
+          integral &= (c != '.' && c != 'e' && c != 'E');
+          this.text.append((char) c);
+          c = this.peek();
+          if (!(c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+            break;
+          }
+          this.read();
+        }
+        final String number = this.text.toString();
+        try {
+          if (integral) {
+            try {
+              this.encoder.encode(Long.parseLong(number));
+              return;
+            }
+            catch (NumberFormatException e) {
+              // Integers that don't fit in 64 bits are encoded as doubles.
+            }
+          }
+          this.encoder.encode(Double.parseDouble(number));
+        }
+        catch (NumberFormatException e) {
+          throw this.error("invalid number " + number);
+        }
+      }
+    }
+  }
+
+  // Append-only store of records numbered by sequence, kept in segment files
+  // named after the sequence of their first record. Every indexInterval-th
+  // record of a segment has its offset written to an index file next to it,
+  // so reads map the segment and skip over at most indexInterval - 1 records
+  // from the closest indexed one. On open the tail of each segment is
+  // scanned from its last indexed record and anything after the last
+  // complete record (a write interrupted by a crash) is truncated.
+  public static class RecordStore implements Closeable {
+    private static final String RECORDS = ".mpack";
+    private static final String INDEX = ".index";
+
+    private static class Segment {
+      private final long base;
+      private final FileChannel records;
+      private final FileChannel index;
+      private long[] offsets = new long[16];
+      private int indexed;
+      private long count;
+      private long size;
+      private MappedByteBuffer map;
+
+      Segment(File directory, long base) throws IOException {
+        final String name = String.format("%020d", base);
+        this.base = base;
+        this.records = FileChannel.open(new File(directory, name + RECORDS).toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(new File(directory, name + INDEX).toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      }
+
+      private final void addOffset(long offset) {
+        if (this.indexed == this.offsets.length) {
+          this.offsets = Arrays.copyOf(this.offsets, 2 * this.indexed);
+        }
+        this.offsets[this.indexed++] = offset;
+      }
+
+      private final ByteBuffer map() throws IOException {
+        if (this.map == null || this.map.capacity() != this.size) {
+          this.map = this.records.map(FileChannel.MapMode.READ_ONLY, 0L, this.size);
+        }
+        return this.map;
+      }
+
+      private final void recover(int interval) throws IOException {
+        final long length = this.records.size();
+        if (length > Integer.MAX_VALUE) {
+          throw new IOException("MPack: record segment too large: " + length);
+        }
+        final ByteBuffer entries = ByteBuffer.allocate((int) (this.index.size() / 8L) * 8);
+        this.index.read(entries, 0L);
+        entries.flip();
+        while (entries.hasRemaining()) {
+          final long offset = entries.getLong();
+          if (offset >= length || (this.indexed != 0 && offset <= this.offsets[this.indexed - 1])) {
+            break;
+          }
+          this.addOffset(offset);
+        }
+        this.size = length;
+        final ByteBuffer buffer = this.map();
+        long offset = (this.indexed == 0) ? 0L : this.offsets[this.indexed - 1];
+        long count = (this.indexed == 0) ? 0L : (long) (this.indexed - 1) * interval;
+        while (offset < length) {
+          final int next = skip(buffer, (int) offset, (int) length);
+          if (next < 0) {
+            break;
+          }
+          if (count % interval == 0 && count / interval >= this.indexed) {
+            this.addOffset(offset);
+          }
+          offset = next;
+          ++count;
+        }
+        // An index entry may have been written for a record that was not
+        // complete, it would otherwise be indexed twice by the next append.
+        while (this.indexed != 0 && this.offsets[this.indexed - 1] >= offset) {
+          --this.indexed;
+        }
+        this.count = count;
+        this.size = offset;
+        this.map = null;
+        this.records.truncate(offset);
+        this.index.truncate(8L * this.indexed);
+        final ByteBuffer rewritten = ByteBuffer.allocate(8 * this.indexed);
+        for (int i = 0; i != this.indexed; ++i) {
+          rewritten.putLong(this.offsets[i]);
+        }
+        rewritten.flip();
+        this.index.write(rewritten, 0L);
+      }
+
+      private final void close() throws IOException {
+        this.map = null;
+        this.records.close();
+        this.index.close();
+      }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final int indexInterval;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Buffer buffer = new Buffer(256);
+    // Segments rolled over since the last flush, which still have to be
+    // forced along with the active one.
+    private final ArrayList<Segment> unflushed = new ArrayList<Segment>();
+    private Segment active;
+
+    public RecordStore(File directory) throws IOException {
+      this(directory, 1L << 30, 64);
+    }
+
+    public RecordStore(File directory, long segmentSize, int indexInterval) throws IOException {
+      if (segmentSize > Integer.MAX_VALUE || indexInterval <= 0) {
+        throw new IllegalArgumentException("MPack: invalid record store settings");
+      }
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("MPack: cannot create record store directory " + directory);
+      }
+      this.directory = directory;
+      this.segmentSize = segmentSize;
+      this.indexInterval = indexInterval;
+      final File[] files = directory.listFiles();
+      for (File file : (files == null) ? new File[0] : files) {
+        final String name = file.getName();
+        if (name.endsWith(RECORDS)) {
+          final long base = Long.parseLong(name.substring(0, name.length() - RECORDS.length()));
+          final Segment segment = new Segment(directory, base);
+          segment.recover(indexInterval);
+          this.segments.put(base, segment);
+        }
+      }
+      this.active = this.segments.isEmpty() ? this.roll(0L) : this.segments.lastEntry().getValue();
+    }
+
+    private final Segment roll(long base) throws IOException {
+      final Segment segment = new Segment(this.directory, base);
+      this.segments.put(base, segment);
+      return segment;
+    }
+
+    public final synchronized long firstSequence() {
+      return this.segments.firstKey();
+    }
+
+    public final synchronized long nextSequence() {
+      return this.active.base + this.active.count;
+    }
+
+    public final synchronized long append(Object record) throws IOException {
+      this.buffer.reset();
+      encode(record, this.buffer);
+      if (this.active.size != 0L && this.active.size + this.buffer.size() > this.segmentSize) {
+        this.unflushed.add(this.active);
+        this.active = this.roll(this.active.base + this.active.count);
+      }
+      final Segment segment = this.active;
+      final ByteBuffer bytes = ByteBuffer.wrap(this.buffer.array(), 0, this.buffer.size());
+      long position = segment.size;
+      while (bytes.hasRemaining()) {
+        position += segment.records.write(bytes, position);
+      }
+      if (segment.count % this.indexInterval == 0) {
+        final ByteBuffer entry = ByteBuffer.allocate(8).putLong(0, segment.size);
+        segment.index.write(entry, 8L * segment.indexed);
+        segment.addOffset(segment.size);
+      }
+      segment.size = position;
+      return segment.base + segment.count++;
+    }
+
+    public final synchronized Object read(long sequence) throws IOException {
+      final List<Object> records = this.read(sequence, sequence + 1);
+      if (records.isEmpty()) {
+        throw new IndexOutOfBoundsException("MPack: no record with sequence " + sequence);
+      }
+      return records.get(0);
+    }
+
+    // Returns the records with a sequence in the range [from; to).
+    public final synchronized List<Object> read(long from, long to) throws IOException {
+      final ArrayList<Object> records = new ArrayList<Object>();
+      from = Math.max(from, this.firstSequence());
+      to = Math.min(to, this.nextSequence());
+      while (from < to) {
+        final Segment segment = this.segments.floorEntry(from).getValue();
+        final ByteBuffer buffer = segment.map();
+        final long first = from - segment.base;
+        final int entry = (int) (first / this.indexInterval);
+        int offset = (int) segment.offsets[entry];
+        for (long i = (long) entry * this.indexInterval; i != first; ++i) {
+          offset = skip(buffer, offset, (int) segment.size);
+        }
+        final long last = Math.min(to - segment.base, segment.count);
+        for (long i = first; i != last; ++i) {
+          final int next = skip(buffer, offset, (int) segment.size);
+          final ByteBuffer record = buffer.duplicate();
+          record.position(offset).limit(next);
+          records.add(decode(record));
+          offset = next;
+        }
+        from = segment.base + last;
+      }
+      return records;
+    }
+
+    public final synchronized void flush() throws IOException {
+      for (Segment segment : this.unflushed) {
+        segment.records.force(false);
+        segment.index.force(false);
+      }
+      this.unflushed.clear();
+      this.active.records.force(false);
+      this.active.index.force(false);
+    }
+
+    public final synchronized void close() throws IOException {
+      for (Segment segment : this.segments.values()) {
+        segment.close();
+      }
+      this.segments.clear();
+      this.unflushed.clear();
+    }
+  }
+
+  public static class RPC {
+    public static final int REQUEST  = 0;
+    public static final int RESPONSE = 1;
+    public static final int NOTIFY   = 2;
+
+    public interface Handler {
+      Object call(String method, List<?> params) throws Exception;
+    }
+
+    public static class RemoteException extends IOException {
+      private static final long serialVersionUID = 1L;
+
+      public final Object error;
+
+      public RemoteException(Object error) {
+        super("MPack: remote call failed: " + error);
+        this.error = error;
+      }
+    }
+
+    // Runs requests on one virtual thread each when the runtime supports them
+    // (Java 21 and above) and on a cached pool of daemon threads otherwise.
+    public static ExecutorService newExecutor() {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (ReflectiveOperationException e) {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+          public Thread newThread(Runnable task) {
+            final Thread thread = new Thread(task, "mpack-rpc");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+    }
+
+    private static SocketChannel connect(SocketAddress address) throws IOException {
+      return SocketChannel.open(address);
+    }
+
+    private static ServerSocketChannel listen(SocketAddress address) throws IOException {
+      final ServerSocketChannel channel = (address instanceof UnixDomainSocketAddress)
+        ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+        : ServerSocketChannel.open();
+      channel.bind(address);
+      return channel;
+    }
+
+    // Messages are queued by the threads that produce them and written by
+    // whichever thread finds the queue idle, which keeps writing until the
+    // queue is empty and flushes once for all the messages it has drained.
+    private static class Outbox {
+      private final Encoder encoder;
+      private final ConcurrentLinkedQueue<List<?>> queue = new ConcurrentLinkedQueue<List<?>>();
+      private final AtomicInteger pending = new AtomicInteger();
+      private volatile IOException error;
+
+      Outbox(SocketChannel channel) {
+        this.encoder = new Encoder(new BufferedOutputStream(new ChannelOutputStream(channel), 8192));
+      }
+
+      final void send(List<?> message) throws IOException {
+        if (this.error != null) {
+          throw this.error;
+        }
+        this.queue.add(message);
+        if (this.pending.getAndIncrement() != 0) {
+          return;
+        }
+        int missed = 1;
+        do {
+          List<?> next;
+          try {
+            while ((next = this.queue.poll()) != null) {
+              this.encoder.encode((Object) next);
+            }
+            this.encoder.flush();
+          }
+          catch (IOException e) {
+            this.error = e;
+            this.queue.clear();
+          }
+          missed = this.pending.addAndGet(-missed);
+        } while (missed != 0);
+        if (this.error != null) {
+          throw this.error;
+        }
+      }
+    }
+
+    public static class Client implements Closeable {
+      private final SocketChannel channel;
+      private final Outbox outbox;
+      private final Decoder decoder;
+      private final AtomicLong ids = new AtomicLong();
+      private final ConcurrentHashMap<Long, CompletableFuture<Object>> calls = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+      private final Thread reader;
+      private volatile IOException failure;
+
+      public Client(SocketAddress address) throws IOException {
+        this.channel = connect(address);
+        this.outbox = new Outbox(this.channel);
+        this.decoder = new Decoder(new BufferedInputStream(new ChannelInputStream(this.channel), 8192));
+        this.reader = new Thread(new Runnable() {
+          public void run() {
+            Client.this.receive();
+          }
+        }, "mpack-rpc-client");
+        this.reader.setDaemon(true);
+        this.reader.start();
+      }
+
+      // Requests are pipelined: each call returns as soon as the request is
+      // written and responses complete their future in whatever order the
+      // server sends them back.
+      public final CompletableFuture<Object> call(String method, Object... params) {
+        final Long id = this.ids.getAndIncrement() & 0xFFFFFFFFL;
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+        if (this.failure != null) {
+          future.completeExceptionally(this.failure);
+          return future;
+        }
+        this.calls.put(id, future);
+        // The reader may have failed and drained the calls since the check
+        // above, in which case nothing else would complete this future.
+        if (this.failure != null) {
+          if (this.calls.remove(id, future)) {
+            future.completeExceptionally(this.failure);
+          }
+          return future;
+        }
+        try {
+          this.outbox.send(Arrays.asList(REQUEST, id, method, Arrays.asList(params)));
+        }
+        catch (IOException e) {
+          this.calls.remove(id);
+          future.completeExceptionally(e);
+        }
+        return future;
+      }
+
+      public final Object invoke(String method, Object... params) throws IOException {
+        try {
+          return this.call(method, params).get();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("MPack: interrupted while waiting for " + method);
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
+      }
+
+      public final void notify(String method, Object... params) throws IOException {
+        this.outbox.send(Arrays.asList(NOTIFY, method, Arrays.asList(params)));
+      }
+
+      private final void receive() {
+        IOException failure = null;
+        try {
+          while (true) {
+            final List<?> message = (List<?>) this.decoder.decode();
+            if (message.size() != 4 || ((Number) message.get(0)).intValue() != RESPONSE) {
+              throw new IOException("MPack: invalid RPC response");
+            }
+            final CompletableFuture<Object> future = this.calls.remove(((Number) message.get(1)).longValue());
+            if (future == null) {
+              continue;
+            }
+            if (message.get(2) != null) {
+              future.completeExceptionally(new RemoteException(message.get(2)));
+            }
+            else {
+              future.complete(message.get(3));
+            }
+          }
+        }
+        catch (IOException e) {
+          failure = e;
+        }
+        catch (RuntimeException e) {
+          failure = new IOException("MPack: invalid RPC response", e);
+        }
+        // Calls made from now on fail right away, the ones in flight are
+        // removed one by one so a call registered concurrently is either
+        // completed here or sees the failure itself.
+        this.failure = failure;
+        try {
+          this.channel.close();
+        }
+        catch (IOException e) { }
+        for (Long id : this.calls.keySet()) {
+          final CompletableFuture<Object> future = this.calls.remove(id);
+          if (future != null) {
+            future.completeExceptionally(failure);
+          }
+        }
+      }
+
+      public final void close() throws IOException {
+        this.channel.close();
+      }
+    }
+
+    public static class Server implements Closeable {
+      private final ServerSocketChannel channel;
+      private final Handler handler;
+      private final ExecutorService executor;
+      private final boolean ownsExecutor;
+      private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+
+      public Server(SocketAddress address, Handler handler) throws IOException {
+        this(address, handler, newExecutor(), true);
+      }
+
+      public Server(SocketAddress address, Handler handler, ExecutorService executor) throws IOException {
+        this(address, handler, executor, false);
+      }
+
+      private Server(SocketAddress address, Handler handler, ExecutorService executor, boolean ownsExecutor) throws IOException {
+        this.channel = listen(address);
+        this.handler = handler;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.executor.execute(new Runnable() {
+          public void run() {
+            Server.this.accept();
+          }
+        });
+      }
+
+      public final SocketAddress address() throws IOException {
+        return this.channel.getLocalAddress();
+      }
+
+      private final void accept() {
+        try {
+          while (true) {
+            final SocketChannel connection = this.channel.accept();
+            this.connections.add(connection);
+            if (!this.channel.isOpen()) {
+              this.connections.remove(connection);
+              connection.close();
+              break;
+            }
+            this.executor.execute(new Runnable() {
+              public void run() {
+                Server.this.serve(connection);
+              }
+            });
+          }
+        }
+        catch (IOException e) {
+          // The server channel was closed.
+        }
+      }
+
+      private final void serve(SocketChannel connection) {
+        final Outbox outbox = new Outbox(connection);
+        final Decoder decoder = new Decoder(new BufferedInputStream(new ChannelInputStream(connection), 8192));
+        try {
+          while (true) {
+            final List<?> message = (List<?>) decoder.decode();
+            final int type = ((Number) message.get(0)).intValue();
+            if (type == REQUEST && message.size() == 4) {
+              this.dispatch(outbox, message.get(1), (String) message.get(2), (List<?>) message.get(3));
+            }
+            else if (type == NOTIFY && message.size() == 3) {
+              this.dispatch(null, null, (String) message.get(1), (List<?>) message.get(2));
+            }
+            else {
+              throw new IOException("MPack: invalid RPC request");
+            }
+          }
+        }
+        catch (IOException e) {
+          // The client went away or sent a malformed message.
+        }
+        catch (RuntimeException e) {
+          // The client sent a message that isn't a valid RPC request.
+        }
+        finally {
+          this.connections.remove(connection);
+          try {
+            connection.close();
+          }
+          catch (IOException e) { }
+        }
+      }
+
+      private final void dispatch(final Outbox outbox, final Object id, final String method, final List<?> params) {
+        this.executor.execute(new Runnable() {
+          public void run() {
+            Object error = null;
+            Object result = null;
+            try {
+              result = Server.this.handler.call(method, params);
+            }
+            catch (Exception e) {
+              error = (e.getMessage() != null) ? e.getMessage() : e.getClass().getName();
+            }
+            if (outbox != null) {
+              try {
+                outbox.send(Arrays.asList(RESPONSE, id, error, result));
+              }
+              catch (IOException e) {
+                // The connection is broken, its reader will close it.
+              }
+            }
+          }
+        });
+      }
+
+      // Closing the connections makes their readers stop, which matters when
+      // the executor belongs to the caller and keeps running.
+      public final void close() throws IOException {
+        this.channel.close();
+        for (SocketChannel connection : this.connections) {
+          this.connections.remove(connection);
+          try {
+            connection.close();
+          }
+          catch (IOException e) { }
+        }
+        if (this.ownsExecutor) {
+          this.executor.shutdownNow();
+        }
+      }
+    }
+  }
+
+  private static class ChannelInputStream extends InputStream {
+    private final ReadableByteChannel channel;
+
+    ChannelInputStream(ReadableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return (this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return (len == 0) ? 0 : this.channel.read(ByteBuffer.wrap(b, off, len));
+    }
+  }
+
+  private static class ChannelOutputStream extends OutputStream {
+    private final WritableByteChannel channel;
+
+    ChannelOutputStream(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        this.channel.write(buffer);
+      }
+    }
+  }
+
+  private MPack() { }
+
+  public static Object decode(byte[] bytes) throws IOException {
+    return decode(new ByteArrayInputStream(bytes));
+  }
+
+  public static Object decode(InputStream istream) throws IOException {
+    return (new Decoder(istream)).decode();
+  }
+  
+  public static byte[] encode(Object object) throws IOException {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    encode(object, ostream);
+    return ostream.toByteArray();
+  }
+
+  public static byte[] encode(Object object, Sizer sizer) throws IOException {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream(sizer.bufferSize());
+    encode(object, ostream);
+    sizer.sample(ostream.size());
+    return ostream.toByteArray();
+  }
+
+  // Encodes a value once so it can be written any number of times after that,
+  // as a map key, a constant part of a message or a cached subtree.
+  public static Raw encodeRaw(Object object) throws IOException {
+    return new Raw(encode(object));
+  }
+
+  public static void encode(Object object, OutputStream ostream) throws IOException {
+    final Encoder encoder = new Encoder(ostream);
+    encoder.encode(object);
+    encoder.flush();
+  }
+
+  public static ByteBuffer encode(Object object, BufferPool pool) throws IOException {
+    final BufferOutputStream ostream = new BufferOutputStream(pool);
+    boolean encoded = false;
+    try {
+      encode(object, ostream);
+      encoded = true;
+    }
+    finally {
+      if (!encoded) {
+        pool.release(ostream.toByteBuffer());
+      }
+    }
+    return ostream.toByteBuffer();
+  }
+
+  public static Object decode(ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      return decode(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+    }
+    return decode(new BufferInputStream(buffer.duplicate()));
+  }
+
+  public static Object decode(List<ByteBuffer> buffers) throws IOException {
+    if (buffers.size() == 1) {
+      return decode(buffers.get(0));
+    }
+    return decode(new CompositeInputStream(buffers));
+  }
+
+  // Batches start with a 5 bytes header made of a flags byte and the number of
+  // messages as a 4 bytes big-endian integer. When BATCH_PREFIXED is set each
+  // message is preceded by its length as a 4 bytes big-endian integer,
+  // otherwise messages are written back to back.
+  public static final int BATCH_PREFIXED = 0x01;
+
+  public static byte[] encodeBatch(List<?> objects) throws IOException {
+    return encodeBatch(objects, true);
+  }
+
+  public static byte[] encodeBatch(List<?> objects, boolean prefixed) throws IOException {
+    return writeBatch(objects, prefixed).toByteArray();
+  }
+
+  public static void encodeBatch(List<?> objects, OutputStream ostream, boolean prefixed) throws IOException {
+    writeBatch(objects, prefixed).writeTo(ostream);
+    ostream.flush();
+  }
+
+  private static Buffer writeBatch(List<?> objects, boolean prefixed) throws IOException {
+    final Buffer buffer = new Buffer(32 * (objects.size() + 1));
+    final Encoder encoder = new Encoder(buffer);
+    buffer.write(prefixed ? BATCH_PREFIXED : 0);
+    encoder.ostream.writeInt(objects.size());
+    for (Object object : objects) {
+      if (prefixed) {
+        final int offset = buffer.size();
+        encoder.ostream.writeInt(0);
+        encoder.encode(object);
+        buffer.putInt(offset, buffer.size() - offset - 4);
+      }
+      else {
+        encoder.encode(object);
+      }
+    }
+    return buffer;
+  }
+
+  public static List<ByteBuffer> decodeBatch(byte[] bytes) throws IOException {
+    return decodeBatch(bytes, 0, bytes.length);
+  }
+
+  // Splits a batch into one buffer per message without decoding them, the
+  // returned buffers share the content of the given array and can be handed
+  // to MPack.decode(ByteBuffer) independently.
+  public static List<ByteBuffer> decodeBatch(byte[] bytes, int offset, int length) throws IOException {
+    final int end = offset + length;
+    if (length < 5) {
+      throw new EOFException("MPack: truncated batch header");
+    }
+    final boolean prefixed = (bytes[offset] & BATCH_PREFIXED) != 0;
+    final int count = readInt(bytes, offset + 1);
+    if (count < 0) {
+      throw new IOException("MPack: invalid batch size: " + count);
+    }
+    final ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>(Math.min(count, length / 5 + 1));
+    offset += 5;
+    for (int i = 0; i != count; ++i) {
+      final int next;
+      if (prefixed) {
+        if (end - offset < 4) {
+          throw new EOFException("MPack: truncated batch at message " + i);
+        }
+        final int size = readInt(bytes, offset);
+        offset += 4;
+        if (size < 0 || size > end - offset) {
+          throw new EOFException("MPack: truncated batch at message " + i);
+        }
+        next = offset + size;
+      }
+      else {
+        next = skip(bytes, offset, end);
+        if (next < 0) {
+          throw new EOFException("MPack: truncated batch at message " + i);
+        }
+      }
+      frames.add(ByteBuffer.wrap(bytes, offset, next - offset).slice());
+      offset = next;
+    }
+    return frames;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24)
+      | ((bytes[offset + 1] & 0xFF) << 16)
+      | ((bytes[offset + 2] & 0xFF) << 8)
+      | (bytes[offset + 3] & 0xFF);
+  }
+
+  // Result of MPack.validate: whether the input holds exactly one well-formed
+  // value and if not the offset and reason of the first error, along with
+  // the number of values and the maximum depth seen until then.
+  public static class Validation {
+    public final boolean valid;
+    public final int errorOffset;
+    public final String error;
+    public final long values;
+    public final int maxDepth;
+
+    private Validation(boolean valid, int errorOffset, String error, long values, int maxDepth) {
+      this.valid = valid;
+      this.errorOffset = errorOffset;
+      this.error = error;
+      this.values = values;
+      this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public String toString() {
+      return this.valid
+        ? "valid (" + this.values + " values, depth " + this.maxDepth + ")"
+        : "invalid at offset " + this.errorOffset + ": " + this.error;
+    }
+  }
+
+  private static class Validator {
+    private final ByteBuffer buffer;
+    private final int end;
+    private final int depthLimit;
+    private long values;
+    private int maxDepth;
+    private int errorOffset = -1;
+    private String error;
+
+    Validator(ByteBuffer buffer, int depthLimit) {
+      this.buffer = buffer;
+      this.end = buffer.limit();
+      this.depthLimit = depthLimit;
+    }
+
+    private final int fail(int offset, String error) {
+      this.errorOffset = offset;
+      this.error = error;
+      return -1;
+    }
+
+    // Returns the offset after the value starting at the given offset, or -1
+    // after recording the first error found.
+    private final int walk(int offset, int depth) {
+      final long header;
+      try {
+        header = header(this.buffer, offset, this.end);
+      }
+      catch (IOException e) {
+        return this.fail(offset, "unknown tag " + (this.buffer.get(offset) & 0xFF));
+      }
+      if (header < 0L) {
+        return this.fail(offset, "truncated header");
+      }
+      ++this.values;
+      final long length = headerLength(header);
+      final int start = offset + headerSize(header);
+      switch (headerKind(header)) {
+      case HEADER.ARRAY:
+      case HEADER.MAP: {
+        if (depth == this.depthLimit) {
+          return this.fail(offset, "maximum depth of " + this.depthLimit + " exceeded");
+        }
+        if (depth + 1 > this.maxDepth) {
+          this.maxDepth = depth + 1;
+        }
+        final long count = (headerKind(header) == HEADER.MAP) ? 2L * length : length;
+        if (count > this.end - start) {
+          return this.fail(offset, "container of " + length + " elements exceeds the input");
+        }
+        int next = start;
+        for (long i = 0L; i != count; ++i) {
+          next = this.walk(next, depth + 1);
+          if (next < 0) {
+            return -1;
+          }
+        }
+        return next;
+      }
+
+      default:
+        if (length > this.end - start) {
+          return this.fail(offset, "value of " + length + " bytes exceeds the input");
+        }
+        return start + (int) length;
+      }
+    }
+  }
+
+  public static Validation validate(byte[] bytes) {
+    return validate(ByteBuffer.wrap(bytes), 256);
+  }
+
+  public static Validation validate(ByteBuffer buffer) {
+    return validate(buffer, 256);
+  }
+
+  // Checks that the remaining bytes of the buffer hold exactly one complete
+  // and well-formed value nested at most maxDepth levels deep, without
+  // decoding it.
+  public static Validation validate(ByteBuffer buffer, int maxDepth) {
+    final Validator validator = new Validator(buffer, maxDepth);
+    final int start = buffer.position();
+    int end = validator.walk(start, 0);
+    if (end >= 0 && end != buffer.limit()) {
+      end = validator.fail(end, "trailing bytes after value");
+    }
+    return new Validation(end >= 0, validator.errorOffset, validator.error, validator.values, validator.maxDepth);
+  }
+
+  public static boolean isAscii(byte[] bytes, int offset, int length) {
+    final int end = offset + length;
+    int i = offset;
+    for (; i + 8 <= end; i += 8) {
+      if (((long) LONGS.get(bytes, i) & ASCII_MASK) != 0L) {
+        return false;
+      }
+    }
+    for (; i < end; ++i) {
+      if (bytes[i] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static boolean isValidUtf8(byte[] bytes, int offset, int length) {
+    final int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      // Skip ASCII runs 8 bytes at a time, then check one multi-byte sequence
+      // against the well-formed byte ranges of RFC 3629 (no overlong forms,
+      // surrogates or code points above U+10FFFF).
+      while (i + 8 <= end && ((long) LONGS.get(bytes, i) & ASCII_MASK) == 0L) {
+        i += 8;
+      }
+      if (i == end) {
+        break;
+      }
+      final int b = bytes[i] & 0xFF;
+      if (b < 0x80) {
+        ++i;
+        continue;
+      }
+      final int n;
+      int lo = 0x80;
+      int hi = 0xBF;
+      if (b >= 0xC2 && b <= 0xDF) {
+        n = 1;
+      }
+      else if (b >= 0xE0 && b <= 0xEF) {
+        n = 2;
+        if (b == 0xE0) {
+          lo = 0xA0;
         }
-        else if (object.data.length <= 65535) {
-          this.encodeExt16(object);
+        else if (b == 0xED) {
+          hi = 0x9F;
         }
-        else {
-          this.encodeExt32(object);
+      }
+      else if (b >= 0xF0 && b <= 0xF4) {
+        n = 3;
+        if (b == 0xF0) {
+          lo = 0x90;
+        }
+        else if (b == 0xF4) {
+          hi = 0x8F;
+        }
+      }
+      else {
+        return false;
+      }
+      if (end - i <= n) {
+        return false;
+      }
+      final int c = bytes[i + 1] & 0xFF;
+      if (c < lo || c > hi) {
+        return false;
+      }
+      for (int k = 2; k <= n; ++k) {
+        if ((bytes[i + k] & 0xC0) != 0x80) {
+          return false;
         }
       }
+      i += n + 1;
     }
+    return true;
+  }
 
-    public final void encode(boolean object) throws IOException {
-      this.encodeBoolean(object);
-    }
+  public static int validateUtf8(byte[] bytes) throws IOException {
+    return validateUtf8(bytes, 0, bytes.length);
+  }
 
-    public final void encode(byte object) throws IOException {
-      this.encodeInteger(object);
+  // Checks the payload of every string found in the sequence of values
+  // encoded in the given range and returns the offset of the first string
+  // that isn't valid UTF-8, or -1 if they all are.
+  public static int validateUtf8(byte[] bytes, int offset, int length) throws IOException {
+    final int end = offset + length;
+    while (offset < end) {
+      final long header = header(bytes, offset, end);
+      if (header < 0L) {
+        throw new EOFException("MPack: truncated message at offset " + offset);
+      }
+      final int kind = headerKind(header);
+      final long size = headerSize(header);
+      final long start = offset + size;
+      final long next = (kind == HEADER.ARRAY || kind == HEADER.MAP) ? start : start + headerLength(header);
+      if (next > end) {
+        throw new EOFException("MPack: truncated message at offset " + offset);
+      }
+      if (kind == HEADER.STRING && !isValidUtf8(bytes, (int) start, (int) (next - start))) {
+        return offset;
+      }
+      offset = (int) next;
     }
+    return -1;
+  }
 
-    public final void encode(short object) throws IOException {
-      this.encodeInteger(object);
+  // Orders encoded values without decoding them: nil comes first, then
+  // booleans, numbers, strings, binaries, arrays, maps and extended values.
+  // Integers and floats are compared by numeric value whatever their width
+  // and signedness, strings and binaries by their unsigned bytes, which for
+  // UTF-8 is the order of the code points, arrays and maps element by element
+  // with shorter ones first when one is a prefix of the other, and extended
+  // values by type then data. String references are compared as extended
+  // values, they aren't resolved.
+  public static int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+    try {
+      return compareValues(a, aOffset, b, bOffset);
     }
-
-    public final void encode(int object) throws IOException {
-      this.encodeInteger(object);
+    catch (IOException e) {
+      throw new IllegalArgumentException("MPack: cannot compare malformed values", e);
     }
+  }
 
-    public final void encode(long object) throws IOException {
-      this.encodeInteger(object);
+  public static final Comparator<Raw> RAW_ORDER = new Comparator<Raw>() {
+    public int compare(Raw a, Raw b) {
+      return MPack.compare(a.bytes, 0, b.bytes, 0);
     }
+  };
 
-    public final void encode(float object) throws IOException {
-      this.encodeFloat(object);
+  private static int orderRank(int tag) {
+    final int family = FAMILIES[tag];
+    return (family == Metrics.FLOAT) ? Metrics.INTEGER : family;
+  }
+
+  private static int compareValues(byte[] a, int aOffset, byte[] b, int bOffset) throws IOException {
+    // Reading the headers first rejects unknown tags and, along with the
+    // bound checks below, truncated values before any byte is read.
+    final long aHeader = header(a, aOffset, a.length);
+    final long bHeader = header(b, bOffset, b.length);
+    if (aHeader < 0L || bHeader < 0L || !contained(aHeader, aOffset, a.length) || !contained(bHeader, bOffset, b.length)) {
+      throw new EOFException();
     }
+    final int aTag = a[aOffset] & 0xFF;
+    final int bTag = b[bOffset] & 0xFF;
+    final int rank = orderRank(aTag);
+    if (rank != orderRank(bTag)) {
+      return Integer.compare(rank, orderRank(bTag));
+    }
+    switch (rank) {
+    case Metrics.NIL:
+      return 0;
 
-    public final void encode(double object) throws IOException {
-      this.encodeFloat(object);
+    case Metrics.BOOLEAN:
+      return Boolean.compare(aTag == TRUE, bTag == TRUE);
+
+    case Metrics.INTEGER:
+      return compareNumbers(a, aOffset, aTag, b, bOffset, bTag);
     }
 
-    public final void encode(Boolean object) throws IOException {
-      this.encodeBoolean(object);
+    int aPosition = aOffset + headerSize(aHeader);
+    int bPosition = bOffset + headerSize(bHeader);
+    long aLength = headerLength(aHeader);
+    long bLength = headerLength(bHeader);
+    switch (rank) {
+    case Metrics.ARRAY:
+    case Metrics.MAP:
+      if (rank == Metrics.MAP) {
+        aLength *= 2L;
+        bLength *= 2L;
+      }
+      for (long i = 0L; i != Math.min(aLength, bLength); ++i) {
+        final int result = compareValues(a, aPosition, b, bPosition);
+        if (result != 0) {
+          return result;
+        }
+        aPosition = skip(a, aPosition, a.length);
+        bPosition = skip(b, bPosition, b.length);
+        if (aPosition < 0 || bPosition < 0) {
+          throw new EOFException();
+        }
+      }
+      return Long.compare(aLength, bLength);
+
+    case Metrics.EXTENDED:
+      if (a[aPosition] != b[bPosition]) {
+        return Byte.compare(a[aPosition], b[bPosition]);
+      }
+      ++aPosition;
+      ++bPosition;
+      --aLength;
+      --bLength;
+      break;
     }
+    return Arrays.compareUnsigned(a, aPosition, aPosition + (int) aLength, b, bPosition, bPosition + (int) bLength);
+  }
 
-    public final void encode(Byte object) throws IOException {
-      this.encodeInteger(object);
+  // Tells whether the header, and the payload of values other than arrays and
+  // maps, fit before end.
+  private static boolean contained(long header, int offset, int end) {
+    final int kind = headerKind(header);
+    final long size = headerSize(header) + ((kind == HEADER.ARRAY || kind == HEADER.MAP) ? 0L : headerLength(header));
+    return offset + size <= end;
+  }
+
+  private static long readLong(byte[] bytes, int offset, int length) {
+    long value = 0L;
+    for (int i = 0; i != length; ++i) {
+      value = (value << 8) | (bytes[offset + i] & 0xFF);
     }
+    return value;
+  }
 
-    public final void encode(Short object) throws IOException {
-      this.encodeInteger(object);
+  private static long integerAt(byte[] bytes, int offset, int tag) {
+    switch (tag) {
+    case UINT8:
+      return bytes[offset + 1] & 0xFFL;
+    case UINT16:
+      return readLong(bytes, offset + 1, 2);
+    case UINT32:
+      return readLong(bytes, offset + 1, 4);
+    case UINT64:
+    case INT64:
+      return readLong(bytes, offset + 1, 8);
+    case INT8:
+      return bytes[offset + 1];
+    case INT16:
+      return (short) readLong(bytes, offset + 1, 2);
+    case INT32:
+      return (int) readLong(bytes, offset + 1, 4);
+    default:
+      return (byte) tag;
     }
+  }
 
-    public final void encode(Integer object) throws IOException {
-      this.encodeInteger(object);
+  private static double floatAt(byte[] bytes, int offset, int tag) {
+    if (tag == FLOAT32) {
+      return Float.intBitsToFloat((int) readLong(bytes, offset + 1, 4));
     }
+    return Double.longBitsToDouble(readLong(bytes, offset + 1, 8));
+  }
 
-    public final void encode(Long object) throws IOException {
-      this.encodeInteger(object);
+  private static int compareNumbers(byte[] a, int aOffset, int aTag, byte[] b, int bOffset, int bTag) {
+    final boolean aFloat = aTag == FLOAT32 || aTag == FLOAT64;
+    final boolean bFloat = bTag == FLOAT32 || bTag == FLOAT64;
+    if (aFloat && bFloat) {
+      final double x = floatAt(a, aOffset, aTag);
+      final double y = floatAt(b, bOffset, bTag);
+      return (x == y) ? 0 : Double.compare(x, y);
     }
+    if (aFloat) {
+      final long y = integerAt(b, bOffset, bTag);
+      return -compareIntegerFloat(y, bTag == UINT64 && y < 0L, floatAt(a, aOffset, aTag));
+    }
+    final long x = integerAt(a, aOffset, aTag);
+    final boolean xUnsigned = aTag == UINT64 && x < 0L;
+    if (bFloat) {
+      return compareIntegerFloat(x, xUnsigned, floatAt(b, bOffset, bTag));
+    }
+    final long y = integerAt(b, bOffset, bTag);
+    final boolean yUnsigned = bTag == UINT64 && y < 0L;
+    if (xUnsigned != yUnsigned) {
+      return xUnsigned ? 1 : -1;
+    }
+    return xUnsigned ? Long.compareUnsigned(x, y) : Long.compare(x, y);
+  }
 
-    public final void encode(Float object) throws IOException {
-      this.encodeFloat(object);
+  // Compares an integer with a float exactly, unsigned is true for uint64
+  // values above Long.MAX_VALUE. NaN is greater than every integer.
+  private static int compareIntegerFloat(long x, boolean unsigned, double y) {
+    if (y != y) {
+      return -1;
+    }
+    if (unsigned) {
+      if (y >= 0x1p64) {
+        return -1;
+      }
+      if (y < 0x1p63) {
+        return 1;
+      }
+      return Long.compareUnsigned(x, (long) (y - 0x1p63) ^ Long.MIN_VALUE);
+    }
+    if (y >= 0x1p63) {
+      return -1;
+    }
+    if (y < -0x1p63) {
+      return 1;
+    }
+    final long t = (long) y;
+    if (x != t) {
+      return Long.compare(x, t);
     }
+    final double fraction = y - t;
+    return (fraction > 0.0) ? -1 : (fraction < 0.0) ? 1 : 0;
+  }
 
-    public final void encode(Double object) throws IOException {
-      this.encodeFloat(object);
+  // Keys are an alternative encoding whose unsigned byte order, what
+  // Arrays.compareUnsigned or memcmp give, is the order of the values, so they
+  // can be compared without being parsed. Each value starts with a type byte:
+  // integers are followed by 8 bytes big-endian with the sign bit flipped,
+  // floats by the bits of the double with the sign bit flipped for positive
+  // values and all bits flipped for negative ones, strings and binaries by
+  // their bytes with 0x00 escaped as 0x00 0xFF and a 0x00 terminator, and
+  // arrays by their elements and a 0x00 terminator. Unlike compare, keys put
+  // all integers before all floats, and maps or extended values can't be
+  // encoded as keys.
+  private static final int KEY_END     = 0x00;
+  private static final int KEY_NIL     = 0x10;
+  private static final int KEY_FALSE   = 0x11;
+  private static final int KEY_TRUE    = 0x12;
+  private static final int KEY_INTEGER = 0x20;
+  private static final int KEY_FLOAT   = 0x21;
+  private static final int KEY_STRING  = 0x30;
+  private static final int KEY_BINARY  = 0x40;
+  private static final int KEY_ARRAY   = 0x50;
+
+  public static byte[] encodeKey(Object object) {
+    final Buffer buffer = new Buffer(32);
+    encodeKey(object, buffer);
+    return buffer.toByteArray();
+  }
+
+  private static void encodeKey(Object object, Buffer buffer) {
+    if (object == null) {
+      buffer.write(KEY_NIL);
+    }
+    else if (object instanceof Boolean) {
+      buffer.write((Boolean) object ? KEY_TRUE : KEY_FALSE);
+    }
+    else if (object instanceof Long || object instanceof Integer || object instanceof Short || object instanceof Byte) {
+      buffer.write(KEY_INTEGER);
+      writeKeyLong(buffer, ((Number) object).longValue() ^ Long.MIN_VALUE);
+    }
+    else if (object instanceof Double || object instanceof Float) {
+      final long bits = Double.doubleToLongBits(((Number) object).doubleValue());
+      buffer.write(KEY_FLOAT);
+      writeKeyLong(buffer, (bits < 0L) ? ~bits : (bits ^ Long.MIN_VALUE));
     }
+    else if (object instanceof String || object instanceof Utf8String) {
+      buffer.write(KEY_STRING);
+      writeKeyBytes(buffer, object.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    else if (object instanceof byte[]) {
+      buffer.write(KEY_BINARY);
+      writeKeyBytes(buffer, (byte[]) object);
+    }
+    else if (object instanceof List<?>) {
+      buffer.write(KEY_ARRAY);
+      for (Object item : (List<?>) object) {
+        encodeKey(item, buffer);
+      }
+      buffer.write(KEY_END);
+    }
+    else {
+      throw new IllegalArgumentException("MPack: no key encoding available for objects of type " + object.getClass().toString());
+    }
+  }
 
-    public final void encode(String object) throws IOException {
-      this.encodeString(object);
+  private static void writeKeyLong(Buffer buffer, long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buffer.write((int) (value >>> shift));
     }
+  }
 
-    public final void encode(byte[] object) throws IOException {
-      this.encodeBinary(object);
+  private static void writeKeyBytes(Buffer buffer, byte[] bytes) {
+    for (byte b : bytes) {
+      buffer.write(b);
+      if (b == 0) {
+        buffer.write(0xFF);
+      }
     }
+    buffer.write(KEY_END);
+  }
 
-    public final <T> void encode(List<T> object) throws IOException {
-      this.encodeArray(object);
+  public static Object decodeKey(byte[] key) throws IOException {
+    final int[] offset = new int[1];
+    final Object object = decodeKey(key, offset);
+    if (offset[0] != key.length) {
+      throw new IOException("MPack: found trailing bytes after key");
     }
+    return object;
+  }
 
-    public final <K, V> void encode(Map<K, V> object) throws IOException {
-      this.encodeMap(object);
+  private static Object decodeKey(byte[] key, int[] offset) throws IOException {
+    if (offset[0] >= key.length) {
+      throw new EOFException();
     }
+    final int type = key[offset[0]++] & 0xFF;
+    switch (type) {
+    case KEY_NIL:
+      return null;
 
-    public final void encode(Extended object) throws IOException {
-      this.encodeExtended(object);
+    case KEY_FALSE:
+      return false;
+
+    case KEY_TRUE:
+      return true;
+
+    case KEY_INTEGER:
+    case KEY_FLOAT: {
+      if (key.length - offset[0] < 8) {
+        throw new EOFException();
+      }
+      final long bits = readLong(key, offset[0], 8);
+      offset[0] += 8;
+      if (type == KEY_INTEGER) {
+        return bits ^ Long.MIN_VALUE;
+      }
+      return Double.longBitsToDouble((bits < 0L) ? (bits ^ Long.MIN_VALUE) : ~bits);
     }
 
-    public final void encode(Object object) throws IOException {
-      if (object == null) {
-        this.encodeNil();
+    case KEY_STRING:
+    case KEY_BINARY: {
+      final Buffer buffer = new Buffer(16);
+      while (true) {
+        if (offset[0] >= key.length) {
+          throw new EOFException();
+        }
+        final byte b = key[offset[0]++];
+        if (b == 0) {
+          if (offset[0] == key.length || key[offset[0]] != (byte) 0xFF) {
+            break;
+          }
+          ++offset[0];
+        }
+        buffer.write(b);
       }
-      else if (object instanceof Boolean) {
-        this.encodeBoolean((Boolean) object);
+      return (type == KEY_STRING) ? buffer.toString(StandardCharsets.UTF_8) : buffer.toByteArray();
+    }
+
+    case KEY_ARRAY: {
+      final ArrayList<Object> array = new ArrayList<Object>();
+      while (true) {
+        if (offset[0] >= key.length) {
+          throw new EOFException();
+        }
+        if (key[offset[0]] == KEY_END) {
+          ++offset[0];
+          return array;
+        }
+        array.add(decodeKey(key, offset));
       }
-      else if (object instanceof Byte) {
-        this.encodeInteger((Byte) object);
+    }
+
+    default:
+      throw new IOException("MPack: found unknown key type: " + type);
+    }
+  }
+
+  // Sorts a record file, a sequence of values written back to back like an
+  // Encoder or a LogWriter produces, into output. Values are read as Raw and
+  // sorted in memory by runs of about memory bytes, runs are written to
+  // temporary files next to output and then merged, at most MAX_MERGED_RUNS
+  // at a time so the number of open files stays bounded whatever the size of
+  // the input. Values that compare equal keep their order.
+  public static final int MAX_MERGED_RUNS = 64;
+
+  public static void sort(File input, File output, long memory) throws IOException {
+    sort(input, output, RAW_ORDER, memory);
+  }
+
+  public static void sort(File input, File output, Comparator<? super Raw> comparator, long memory) throws IOException {
+    final File directory = output.getAbsoluteFile().getParentFile();
+    final ArrayList<File> runs = new ArrayList<File>();
+    final ArrayList<Raw> run = new ArrayList<Raw>();
+    try {
+      final InputStream istream = new BufferedInputStream(new FileInputStream(input), 65536);
+      try {
+        final Decoder decoder = new Decoder(istream);
+        long remaining = input.length();
+        long size = 0L;
+        while (remaining != 0L) {
+          final Raw record = decoder.decodeRaw();
+          remaining -= record.size();
+          size += record.size() + 32L;
+          run.add(record);
+          if (size >= memory) {
+            final File file = File.createTempFile("mpack-sort", ".run", directory);
+            runs.add(file);
+            writeRun(run, comparator, file);
+            run.clear();
+            size = 0L;
+          }
+        }
       }
-      else if (object instanceof Short) {
-        this.encodeInteger((Short) object);
+      finally {
+        istream.close();
       }
-      else if (object instanceof Integer) {
-        this.encodeInteger((Integer) object);
+      if (runs.isEmpty()) {
+        writeRun(run, comparator, output);
       }
-      else if (object instanceof Long) {
-        this.encodeInteger((Long) object);
+      else {
+        if (!run.isEmpty()) {
+          final File file = File.createTempFile("mpack-sort", ".run", directory);
+          runs.add(file);
+          writeRun(run, comparator, file);
+          run.clear();
+        }
+        List<File> pending = new ArrayList<File>(runs);
+        while (pending.size() > MAX_MERGED_RUNS) {
+          // Merging consecutive runs keeps equal values in input order.
+          final ArrayList<File> merged = new ArrayList<File>();
+          for (int i = 0; i < pending.size(); i += MAX_MERGED_RUNS) {
+            final List<File> group = pending.subList(i, Math.min(i + MAX_MERGED_RUNS, pending.size()));
+            final File file = File.createTempFile("mpack-sort", ".run", directory);
+            runs.add(file);
+            merged.add(file);
+            mergeRuns(group, comparator, file);
+            for (File done : group) {
+              done.delete();
+            }
+          }
+          pending = merged;
+        }
+        mergeRuns(pending, comparator, output);
       }
-      else if (object instanceof Float) {
-        this.encodeFloat((Float) object);
+    }
+    finally {
+      for (File file : runs) {
+        file.delete();
       }
-      else if (object instanceof Double) {
-        this.encodeFloat((Double) object);
+    }
+  }
+
+  private static void writeRun(List<Raw> run, Comparator<? super Raw> comparator, File file) throws IOException {
+    run.sort(comparator);
+    final OutputStream ostream = new BufferedOutputStream(new FileOutputStream(file), 65536);
+    try {
+      for (Raw record : run) {
+        ostream.write(record.bytes);
       }
-      else if (object instanceof String) {
-        this.encodeString((String) object);
+    }
+    finally {
+      ostream.close();
+    }
+  }
+
+  private static class RunCursor {
+    private final int index;
+    private final InputStream istream;
+    private final Decoder decoder;
+    private long remaining;
+    private Raw record;
+
+    RunCursor(int index, File file) throws IOException {
+      this.index = index;
+      this.istream = new BufferedInputStream(new FileInputStream(file), 65536);
+      this.decoder = new Decoder(this.istream);
+      this.remaining = file.length();
+    }
+
+    final boolean next() throws IOException {
+      if (this.remaining == 0L) {
+        this.record = null;
+        return false;
       }
-      else if (object instanceof byte[]) {
-        this.encodeBinary((byte[]) object);
+      this.record = this.decoder.decodeRaw();
+      this.remaining -= this.record.size();
+      return true;
+    }
+  }
+
+  private static void mergeRuns(List<File> runs, final Comparator<? super Raw> comparator, File output) throws IOException {
+    final PriorityQueue<RunCursor> cursors = new PriorityQueue<RunCursor>(runs.size(), new Comparator<RunCursor>() {
+      public int compare(RunCursor a, RunCursor b) {
+        final int result = comparator.compare(a.record, b.record);
+        return (result != 0) ? result : Integer.compare(a.index, b.index);
       }
-      else if (object instanceof List<?>) {
-        this.encodeArray((List<?>) object);
+    });
+    final ArrayList<RunCursor> opened = new ArrayList<RunCursor>(runs.size());
+    final OutputStream ostream = new BufferedOutputStream(new FileOutputStream(output), 65536);
+    try {
+      for (File file : runs) {
+        final RunCursor cursor = new RunCursor(opened.size(), file);
+        opened.add(cursor);
+        if (cursor.next()) {
+          cursors.add(cursor);
+        }
       }
-      else if (object instanceof Map<?, ?>) {
-        this.encodeMap((Map<?, ?>) object);
+      while (!cursors.isEmpty()) {
+        final RunCursor cursor = cursors.poll();
+        ostream.write(cursor.record.bytes);
+        if (cursor.next()) {
+          cursors.add(cursor);
+        }
       }
-      else if (object instanceof Extended) {
-        this.encodeExtended((Extended) object);
+    }
+    finally {
+      ostream.close();
+      for (RunCursor cursor : opened) {
+        cursor.istream.close();
       }
-      else {
-        throw new IllegalArgumentException("MPack: no encoding available for objects of type " + object.getClass().toString());
+    }
+  }
+
+  // Describes the header started by each tag: the kind of value in the lower
+  // 8 bits, the width of the length field that follows the tag in the next 8
+  // bits (0 when the length is implied by the tag) and in the upper 16 bits
+  // the implied length, or the number of extra bytes to add to the length
+  // read from the length field (the type byte of extension values). Unused
+  // tags are set to -1.
+  private static final int[] HEADERS = headers();
+
+  // The Metrics family of the value started by each tag (-1 for unused tags),
+  // and the value itself for tags that fully describe it (fixnums and
+  // booleans), so decoding those is a table lookup that doesn't allocate. Uint8 and int8 values are
+  // taken from SMALL_LONGS, which holds the boxed integers from -128 to 255.
+  private static final byte[] FAMILIES = new byte[256];
+  private static final Object[] CONSTANTS = new Object[256];
+  private static final Long[] SMALL_LONGS = new Long[384];
+
+  static {
+    for (int i = 0; i != SMALL_LONGS.length; ++i) {
+      SMALL_LONGS[i] = Long.valueOf(i - 128);
+    }
+    for (int tag = 0; tag != 256; ++tag) {
+      FAMILIES[tag] = (byte) (HEADERS[tag] < 0 ? -1 : Metrics.family(tag));
+      if ((tag & 0x80) == FIXNUM.POSITIVE || (tag & 0xE0) == FIXNUM.NEGATIVE) {
+        CONSTANTS[tag] = SMALL_LONGS[(byte) tag + 128];
       }
     }
+    CONSTANTS[TRUE] = Boolean.TRUE;
+    CONSTANTS[FALSE] = Boolean.FALSE;
+  }
 
-    public final void flush() throws IOException {
-      this.ostream.flush();
+  private static int[] headers() {
+    final int[] headers = new int[256];
+    for (int tag = 0; tag != 256; ++tag) {
+      headers[tag] = tagHeader(tag);
     }
+    return headers;
+  }
 
+  private static int tagHeader(int kind, int width, int length) {
+    return kind | (width << 8) | (length << 16);
   }
 
-  private MPack() { }
+  private static int tagHeader(int tag) {
+    if ((tag & 0x80) == FIXNUM.POSITIVE || (tag & 0xE0) == FIXNUM.NEGATIVE) {
+      return tagHeader(HEADER.SCALAR, 0, 0);
+    }
 
-  public static Object decode(byte[] bytes) throws IOException {
-    return decode(new ByteArrayInputStream(bytes));
+    if ((tag & 0xE0) == FIXSTR) {
+      return tagHeader(HEADER.STRING, 0, tag & ~FIXSTR);
+    }
+
+    if ((tag & 0xF0) == FIXARRAY) {
+      return tagHeader(HEADER.ARRAY, 0, tag & ~FIXARRAY);
+    }
+
+    if ((tag & 0xF0) == FIXMAP) {
+      return tagHeader(HEADER.MAP, 0, tag & ~FIXMAP);
+    }
+
+    switch (tag) {
+    case NIL:
+    case TRUE:
+    case FALSE:
+      return tagHeader(HEADER.SCALAR, 0, 0);
+
+    case UINT8:
+    case INT8:
+      return tagHeader(HEADER.SCALAR, 0, 1);
+
+    case UINT16:
+    case INT16:
+      return tagHeader(HEADER.SCALAR, 0, 2);
+
+    case UINT32:
+    case INT32:
+    case FLOAT32:
+      return tagHeader(HEADER.SCALAR, 0, 4);
+
+    case UINT64:
+    case INT64:
+    case FLOAT64:
+      return tagHeader(HEADER.SCALAR, 0, 8);
+
+    case FIXEXT1:
+      return tagHeader(HEADER.SCALAR, 0, 2);
+
+    case FIXEXT2:
+      return tagHeader(HEADER.SCALAR, 0, 3);
+
+    case FIXEXT4:
+      return tagHeader(HEADER.SCALAR, 0, 5);
+
+    case FIXEXT8:
+      return tagHeader(HEADER.SCALAR, 0, 9);
+
+    case FIXEXT16:
+      return tagHeader(HEADER.SCALAR, 0, 17);
+
+    case STR8:
+      return tagHeader(HEADER.STRING, 1, 0);
+
+    case STR16:
+      return tagHeader(HEADER.STRING, 2, 0);
+
+    case STR32:
+      return tagHeader(HEADER.STRING, 4, 0);
+
+    case BIN8:
+      return tagHeader(HEADER.SCALAR, 1, 0);
+
+    case BIN16:
+      return tagHeader(HEADER.SCALAR, 2, 0);
+
+    case BIN32:
+      return tagHeader(HEADER.SCALAR, 4, 0);
+
+    case EXT8:
+      return tagHeader(HEADER.SCALAR, 1, 1);
+
+    case EXT16:
+      return tagHeader(HEADER.SCALAR, 2, 1);
+
+    case EXT32:
+      return tagHeader(HEADER.SCALAR, 4, 1);
+
+    case ARRAY16:
+      return tagHeader(HEADER.ARRAY, 2, 0);
+
+    case ARRAY32:
+      return tagHeader(HEADER.ARRAY, 4, 0);
+
+    case MAP16:
+      return tagHeader(HEADER.MAP, 2, 0);
+
+    case MAP32:
+      return tagHeader(HEADER.MAP, 4, 0);
+
+    default:
+      return -1;
+    }
   }
 
-  public static Object decode(InputStream istream) throws IOException {
-    return (new Decoder(istream)).decode();
+  // Reads the header of the value starting at the given offset and packs its
+  // length (payload bytes, or number of elements for arrays and maps) in the
+  // lower 40 bits, the size of the header in the next 8 bits and its kind in
+  // the 8 bits after that. Returns -1 if the header is truncated.
+  private static long header(byte[] bytes, int offset, int end) throws IOException {
+    if (offset >= end) {
+      return -1L;
+    }
+    final int tag = bytes[offset] & 0xFF;
+    final int info = HEADERS[tag];
+    if (info < 0) {
+      throw new IOException("MPack: decoder found unknown tag: " + tag);
+    }
+    final int width = (info >>> 8) & 0xFF;
+    if (end - offset <= width) {
+      return -1L;
+    }
+    long length = 0L;
+    for (int i = 1; i <= width; ++i) {
+      length = (length << 8) | (bytes[offset + i] & 0xFF);
+    }
+    return header(info & 0xFF, 1 + width, length + (info >>> 16));
   }
-  
-  public static byte[] encode(Object object) throws IOException {
-    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-    encode(object, ostream);
-    return ostream.toByteArray();
+
+  private static long header(ByteBuffer buffer, int offset, int end) throws IOException {
+    if (offset >= end) {
+      return -1L;
+    }
+    final int tag = buffer.get(offset) & 0xFF;
+    final int info = HEADERS[tag];
+    if (info < 0) {
+      throw new IOException("MPack: decoder found unknown tag: " + tag);
+    }
+    final int width = (info >>> 8) & 0xFF;
+    if (end - offset <= width) {
+      return -1L;
+    }
+    long length = 0L;
+    for (int i = 1; i <= width; ++i) {
+      length = (length << 8) | (buffer.get(offset + i) & 0xFF);
+    }
+    return header(info & 0xFF, 1 + width, length + (info >>> 16));
   }
 
-  public static void encode(Object object, OutputStream ostream) throws IOException {
-    final Encoder encoder = new Encoder(ostream);
-    encoder.encode(object);
-    encoder.flush();
+  private static long header(int kind, int size, long length) {
+    return ((long) kind << 48) | ((long) size << 40) | length;
+  }
+
+  private static int headerKind(long header) {
+    return (int) (header >>> 48);
+  }
+
+  private static int headerSize(long header) {
+    return (int) (header >>> 40) & 0xFF;
+  }
+
+  private static long headerLength(long header) {
+    return header & 0xFFFFFFFFFFL;
+  }
+
+  // Returns the offset right after the value starting at the given offset, or
+  // -1 if the value is truncated.
+  private static int skip(byte[] bytes, int offset, int end) throws IOException {
+    long position = offset;
+    long pending = 1L;
+    while (pending-- != 0L) {
+      final long header = header(bytes, (int) position, end);
+      if (header < 0L) {
+        return -1;
+      }
+      position += headerSize(header);
+      switch (headerKind(header)) {
+      case HEADER.ARRAY:
+        pending += headerLength(header);
+        break;
+
+      case HEADER.MAP:
+        pending += 2L * headerLength(header);
+        break;
+
+      default:
+        position += headerLength(header);
+      }
+      if (position > end) {
+        return -1;
+      }
+    }
+    return (int) position;
+  }
+
+  private static int skip(ByteBuffer buffer, int offset, int end) throws IOException {
+    long position = offset;
+    long pending = 1L;
+    while (pending-- != 0L) {
+      final long header = header(buffer, (int) position, end);
+      if (header < 0L) {
+        return -1;
+      }
+      position += headerSize(header);
+      switch (headerKind(header)) {
+      case HEADER.ARRAY:
+        pending += headerLength(header);
+        break;
+
+      case HEADER.MAP:
+        pending += 2L * headerLength(header);
+        break;
+
+      default:
+        position += headerLength(header);
+      }
+      if (position > end) {
+        return -1;
+      }
+    }
+    return (int) position;
   }
 }
@@ -24,18 +24,55 @@
 package mpack;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.Ignore;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.lang.StringBuilder;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MPackTests {
 
@@ -367,5 +404,1508 @@ public class MPackTests {
     assertEquals(base.data.length, copy.data.length);
   }
 
-}
+  @Test
+  public void testEncodeDecodeMetrics() throws IOException {
+    final HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("name", "hello");
+    base.put("list", makeList(20));
+    base.put("data", makeBinary(100));
+    base.put("none", null);
+
+    final MPack.Metrics encoderMetrics = new MPack.Metrics(Long.MAX_VALUE, 0L);
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream, encoderMetrics);
+    encoder.encode(base);
+    encoder.flush();
+
+    final MPack.Metrics decoderMetrics = new MPack.Metrics();
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()), decoderMetrics);
+    assertEquals(base.get("name"), ((Map<?, ?>) decoder.decode()).get("name"));
+
+    for (MPack.Metrics metrics : Arrays.asList(encoderMetrics, decoderMetrics)) {
+      assertEquals(1L, metrics.messages);
+      assertEquals((long) ostream.size(), metrics.bytes);
+      assertEquals(1L, metrics.values[MPack.Metrics.MAP]);
+      assertEquals(1L, metrics.values[MPack.Metrics.ARRAY]);
+      assertEquals(20L, metrics.values[MPack.Metrics.INTEGER]);
+      assertEquals(5L, metrics.values[MPack.Metrics.STRING]);
+      assertEquals(1L, metrics.values[MPack.Metrics.NIL]);
+      assertEquals(100L, metrics.payloadBytes[MPack.Metrics.BINARY]);
+      assertEquals(1L, metrics.containerSizes[MPack.Metrics.bucket(4)]);
+      assertEquals(1L, metrics.containerSizes[MPack.Metrics.bucket(20)]);
+      assertEquals(1L, metrics.messageDepths[2]);
+    }
+
+    assertEquals(1L, encoderMetrics.events);
+    assertEquals(0L, decoderMetrics.events);
+
+    final MPack.Metrics typedMetrics = new MPack.Metrics(Long.MAX_VALUE, 0L);
+    final MPack.Encoder typed = new MPack.Encoder(new ByteArrayOutputStream(), typedMetrics);
+    typed.encode(42L);
+    typed.encode("hello");
+    typed.encode(makeList(3));
+    typed.encode(makeList(3));
+    assertEquals(4L, typedMetrics.messages);
+    assertEquals(4L, typedMetrics.events);
+    assertEquals(2L, typedMetrics.messageDepths[1]);
+  }
+
+  @Test
+  public void testMetricsUnknownTag() throws IOException {
+    assertEquals(MPack.Metrics.INTEGER, MPack.Metrics.family(0xd3));
+    try {
+      MPack.Metrics.family(0xc1);
+      assertTrue(false);
+    }
+    catch (IllegalArgumentException e) {
+    }
+
+    final MPack.Metrics metrics = new MPack.Metrics();
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(new byte[] { (byte) 0xc1 }), metrics);
+    try {
+      decoder.decode();
+      assertTrue(false);
+    }
+    catch (IOException e) {
+    }
+    assertEquals(0L, metrics.count());
+  }
+
+  @Test
+  public void testValidUtf8() throws IOException {
+    final byte[] ascii = makeString(100).getBytes("UTF-8");
+    final byte[] mixed = (makeString(13) + "\u00e9\u2022\ud83d\ude00" + makeString(9)).getBytes("UTF-8");
+    assertTrue(MPack.isAscii(ascii, 0, ascii.length));
+    assertFalse(MPack.isAscii(mixed, 0, mixed.length));
+    assertTrue(MPack.isValidUtf8(ascii, 0, ascii.length));
+    assertTrue(MPack.isValidUtf8(mixed, 0, mixed.length));
+    assertFalse(MPack.isValidUtf8(mixed, 0, 14));
+    assertFalse(MPack.isValidUtf8(new byte[] { (byte) 0xc0, (byte) 0x80 }, 0, 2));
+    assertFalse(MPack.isValidUtf8(new byte[] { (byte) 0xed, (byte) 0xa0, (byte) 0x80 }, 0, 3));
+    assertFalse(MPack.isValidUtf8(new byte[] { (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 }, 0, 4));
+  }
+
+  @Test
+  public void testValidateUtf8() throws IOException {
+    final ArrayList<Object> base = new ArrayList<Object>();
+    base.add(makeString(20));
+    base.add(makeBinary(20));
+    base.add("\u00e9\u00e9");
+    final byte[] bytes = MPack.encode(base);
+    assertEquals(-1, MPack.validateUtf8(bytes));
+
+    bytes[bytes.length - 1] = (byte) 0xff;
+    assertEquals(bytes.length - 5, MPack.validateUtf8(bytes));
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecodeStrictUtf8() throws IOException {
+    final byte[] bytes = MPack.encode("\u00e9");
+    bytes[2] = (byte) 0xff;
+    assertEquals("\u00e9".length() + 1, ((String) MPack.decode(bytes)).length());
+
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(bytes));
+    decoder.setStrictUtf8(true);
+    decoder.decode();
+  }
+
+  @Test
+  public void testEncodeDecodeBatch() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    base.add(42L);
+    base.add(makeString(300));
+    base.add(makeList(20));
+    base.add(makeMap(5));
+    base.add(null);
+
+    for (boolean prefixed : new boolean[] { true, false }) {
+      final List<ByteBuffer> frames = MPack.decodeBatch(MPack.encodeBatch(base, prefixed));
+      assertEquals(base.size(), frames.size());
+      for (int i = 0; i != base.size(); ++i) {
+        assertEquals(ByteBuffer.wrap(MPack.encode(base.get(i))), frames.get(i));
+        assertEquals(base.get(i), MPack.decode(frames.get(i)));
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecodeTruncatedBatch() throws IOException {
+    final byte[] bytes = MPack.encodeBatch(Arrays.asList(makeString(100), makeString(100)), false);
+    MPack.decodeBatch(bytes, 0, bytes.length - 1);
+  }
+
+  private MPack.RPC.Server makeServer(final CountDownLatch notified) throws IOException {
+    return new MPack.RPC.Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new MPack.RPC.Handler() {
+      public Object call(String method, List<?> params) throws Exception {
+        if (method.equals("add")) {
+          // Delay small values so responses come back out of order.
+          final long a = (Long) params.get(0);
+          Thread.sleep(a < 5 ? 20 : 0);
+          return a + (Long) params.get(1);
+        }
+        if (method.equals("ping")) {
+          notified.countDown();
+          return null;
+        }
+        throw new IllegalArgumentException("no such method: " + method);
+      }
+    });
+  }
+
+  @Test
+  public void testRPCPipelinedCalls() throws Exception {
+    final CountDownLatch notified = new CountDownLatch(1);
+    final MPack.RPC.Server server = makeServer(notified);
+    final MPack.RPC.Client client = new MPack.RPC.Client(server.address());
+    try {
+      final List<CompletableFuture<Object>> calls = new ArrayList<CompletableFuture<Object>>();
+      for (long i = 0; i != 100; ++i) {
+        calls.add(client.call("add", i, 1000L));
+      }
+      for (int i = 0; i != 100; ++i) {
+        assertEquals(1000L + i, calls.get(i).get(5, TimeUnit.SECONDS));
+      }
+      client.notify("ping");
+      assertTrue(notified.await(5, TimeUnit.SECONDS));
+    }
+    finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  @Test
+  public void testRPCRemoteError() throws Exception {
+    final MPack.RPC.Server server = makeServer(new CountDownLatch(1));
+    final MPack.RPC.Client client = new MPack.RPC.Client(server.address());
+    try {
+      client.invoke("nope");
+      assertTrue(false);
+    }
+    catch (MPack.RPC.RemoteException e) {
+      assertEquals("no such method: nope", e.error);
+    }
+    finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  @Test
+  public void testRPCServerClosed() throws Exception {
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final MPack.RPC.Server server = new MPack.RPC.Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new MPack.RPC.Handler() {
+      public Object call(String method, List<?> params) {
+        return method;
+      }
+    }, executor);
+    final MPack.RPC.Client client = new MPack.RPC.Client(server.address());
+    try {
+      assertEquals("echo", client.invoke("echo"));
+      server.close();
+      // Once the client has seen the connection close, calls fail instead
+      // of waiting forever for a response.
+      for (int i = 0; i != 2; ++i) {
+        try {
+          client.call("echo").get(5, TimeUnit.SECONDS);
+          assertTrue(false);
+        }
+        catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof IOException);
+        }
+      }
+    }
+    finally {
+      client.close();
+      server.close();
+      executor.shutdown();
+    }
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testEncodeDecodeBufferScalars() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (int i = 0; i != 1000; ++i) {
+      base.add(Arrays.asList(-200L * i, 60000L + i, -70000L * i, 0xFFFFFFF0L, Long.MIN_VALUE + i, 3.5f, i / 7.0, Double.NaN));
+    }
+    final byte[] bytes = MPack.encode(base);
+    final ByteBuffer buffer = MPack.encode(base, new MPack.BufferPool());
+    assertEquals(ByteBuffer.wrap(bytes), buffer);
+    assertEquals(base, new MPack.Decoder(new MPack.BufferInputStream(buffer)).decode());
+    assertEquals(base, new MPack.Decoder(new MPack.BufferInputStream(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN))).decode());
+  }
+
+  @Test
+  public void testEncodeDecodeBufferPool() throws IOException {
+    final MPack.BufferPool pool = new MPack.BufferPool();
+    final List<?> base = Arrays.asList(makeString(100000), makeMap(1000), makeBinary(10));
+
+    final ByteBuffer buffer = MPack.encode(base, pool);
+    assertTrue(buffer.isDirect());
+    assertEquals(ByteBuffer.wrap(MPack.encode(base)), buffer);
+
+    final MPack.Decoder decoder = new MPack.Decoder(new MPack.BufferInputStream(buffer));
+    final List<?> copy = (List<?>) decoder.decode();
+    assertEquals(base.get(0), copy.get(0));
+    assertEquals(base.get(1), copy.get(1));
+    assertEquals(0, buffer.remaining());
+
+    pool.release(buffer);
+    assertTrue(buffer == pool.acquire(buffer.capacity() - 1));
+
+    assertEquals(MPack.BufferPool.MIN_CAPACITY, pool.acquire(0).capacity());
+    assertEquals(0, new MPack.BufferOutputStream(pool, 0).size());
+
+    // A failed encoding gives its buffer back to the pool.
+    final MPack.BufferPool small = new MPack.BufferPool();
+    try {
+      MPack.encode(Arrays.asList(1L, new Object()), small);
+      assertTrue(false);
+    }
+    catch (IllegalArgumentException e) {
+    }
+    assertEquals((byte) 0x92, small.acquire(1).get(0));
+  }
+
+  private static class Collector implements Flow.Subscriber<Object> {
+    final List<Object> values = new ArrayList<Object>();
+    final CountDownLatch done = new CountDownLatch(1);
+    Flow.Subscription subscription;
+    Throwable error;
+
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    public void onNext(Object value) {
+      this.values.add(value);
+      this.subscription.request(1);
+    }
+
+    public void onError(Throwable error) {
+      this.error = error;
+      this.done.countDown();
+    }
+
+    public void onComplete() {
+      this.done.countDown();
+    }
+  }
+
+  @Test
+  public void testDecodingProcessor() throws Exception {
+    final List<Object> base = Arrays.<Object>asList(makeString(100), makeList(20), null, 42L);
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream);
+    for (Object object : base) {
+      encoder.encode(object);
+    }
+    final byte[] bytes = ostream.toByteArray();
+
+    final MPack.DecodingProcessor processor = new MPack.DecodingProcessor();
+    final Collector collector = new Collector();
+    processor.subscribe(collector);
+
+    final SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+    publisher.subscribe(processor);
+    for (int i = 0; i < bytes.length; i += 7) {
+      publisher.submit(ByteBuffer.wrap(bytes, i, Math.min(7, bytes.length - i)));
+    }
+    publisher.close();
+
+    assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+    assertEquals(null, collector.error);
+    assertEquals(Arrays.<Object>asList(base.get(0), base.get(1), MPack.DecodingProcessor.NIL, 42L), collector.values);
+  }
+
+  @Test
+  public void testDecodingProcessorByteChunks() throws Exception {
+    final List<Object> base = new ArrayList<Object>();
+    for (int i = 0; i != 2000; ++i) {
+      base.add(Arrays.asList((long) i, "value-" + i, makeList(3)));
+    }
+    final byte[] bytes = MPack.encode(base);
+
+    final MPack.DecodingProcessor processor = new MPack.DecodingProcessor();
+    final Collector collector = new Collector();
+    processor.subscribe(collector);
+
+    final SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+    publisher.subscribe(processor);
+    for (int i = 0; i != bytes.length; ++i) {
+      publisher.submit(ByteBuffer.wrap(bytes, i, 1));
+    }
+    publisher.submit(ByteBuffer.wrap(bytes, 0, 3));
+    publisher.close();
+
+    assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.<Object>asList(base), collector.values);
+    assertTrue(collector.error instanceof IOException);
+  }
+
+  @Test
+  public void testDecodingProcessorInvalidRequest() throws Exception {
+    final MPack.DecodingProcessor processor = new MPack.DecodingProcessor();
+    final Collector collector = new Collector() {
+      @Override
+      public void onNext(Object value) {
+        this.values.add(value);
+      }
+    };
+    processor.subscribe(collector);
+    processor.onSubscribe(new Flow.Subscription() {
+      public void request(long n) { }
+      public void cancel() { }
+    });
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream);
+    for (long i = 0; i != 3; ++i) {
+      encoder.encode(i);
+    }
+    processor.onNext(ByteBuffer.wrap(ostream.toByteArray()));
+    assertEquals(Arrays.<Object>asList(0L), collector.values);
+
+    // The error comes before the values still queued.
+    collector.subscription.request(0);
+    assertTrue(collector.error instanceof IllegalArgumentException);
+    assertEquals(Arrays.<Object>asList(0L), collector.values);
+  }
+
+  @Test
+  public void testEncodingProcessorEarlyTermination() throws Exception {
+    final Flow.Subscription upstream = new Flow.Subscription() {
+      public void request(long n) { }
+      public void cancel() { }
+    };
+    final MPack.EncodingProcessor completed = new MPack.EncodingProcessor();
+    completed.onSubscribe(upstream);
+    completed.onComplete();
+    final Collector collector = new Collector();
+    completed.subscribe(collector);
+    assertEquals(0, collector.done.getCount());
+    assertEquals(null, collector.error);
+
+    final MPack.EncodingProcessor failed = new MPack.EncodingProcessor();
+    failed.onSubscribe(upstream);
+    failed.onError(new IOException("failed"));
+    final Collector failure = new Collector();
+    failed.subscribe(failure);
+    assertTrue(failure.error instanceof IOException);
+  }
+
+  @Test
+  public void testEncodingProcessor() throws Exception {
+    final MPack.EncodingProcessor encoder = new MPack.EncodingProcessor();
+    final MPack.DecodingProcessor decoder = new MPack.DecodingProcessor();
+    final Collector collector = new Collector();
+    encoder.subscribe(decoder);
+    decoder.subscribe(collector);
+
+    final SubmissionPublisher<Object> publisher = new SubmissionPublisher<Object>();
+    publisher.subscribe(encoder);
+    for (long i = 0; i != 100; ++i) {
+      publisher.submit(i);
+    }
+    publisher.close();
+
+    assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+    assertEquals(makeList(100), collector.values);
+  }
+
+  @Test
+  public void testEncodeDecodeCompressed() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (int i = 0; i != 1000; ++i) {
+      base.add(makeMap(10));
+      base.add(makeBinary(i));
+    }
+    final byte[] raw = MPack.encode(base);
+
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.CompressedOutputStream compressed = new MPack.CompressedOutputStream(ostream, 4096);
+    MPack.encode(base, compressed);
+    assertTrue(ostream.size() < raw.length / 4);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      assertTrue(Arrays.equals(ostream.toByteArray(), MPack.LZ.compress(raw, 4096, executor)));
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    final MPack.Decoder decoder = new MPack.Decoder(new MPack.CompressedInputStream(new ByteArrayInputStream(ostream.toByteArray())));
+    final List<?> copy = (List<?>) decoder.decode();
+    assertEquals(base.size(), copy.size());
+    assertEquals(base.get(20), copy.get(20));
+    assertTrue(Arrays.equals(makeBinary(999), (byte[]) copy.get(1999)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testCompressedBlockTooLarge() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(12);
+    header.putInt(Integer.MAX_VALUE - 64).putInt(Integer.MAX_VALUE - 64).putInt(0);
+    new MPack.CompressedInputStream(new ByteArrayInputStream(header.array()), 4096).read();
+  }
+
+  @Test
+  public void testCompressedTruncatedHeader() throws IOException {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.CompressedOutputStream compressed = new MPack.CompressedOutputStream(ostream, 4096);
+    MPack.encode(makeList(10), compressed);
+    compressed.close();
+    final byte[] block = ostream.toByteArray();
+    for (int extra = 1; extra != 8; ++extra) {
+      final byte[] bytes = Arrays.copyOf(block, block.length + extra);
+      System.arraycopy(block, 0, bytes, block.length, extra);
+      final MPack.CompressedInputStream istream = new MPack.CompressedInputStream(new ByteArrayInputStream(bytes));
+      assertEquals(makeList(10), MPack.decode(istream));
+      try {
+        istream.read();
+        assertTrue(false);
+      }
+      catch (EOFException e) {
+      }
+    }
+  }
+
+  @Test
+  public void testCompressIncompressible() throws IOException {
+    final byte[] data = new byte[10000];
+    new java.util.Random(42).nextBytes(data);
+    final byte[] block = new byte[MPack.LZ.maxCompressedLength(data.length)];
+    final int length = MPack.LZ.compress(data, 0, data.length, block, 0);
+    final byte[] copy = new byte[data.length];
+    MPack.LZ.decompress(block, 0, length, copy, 0, copy.length);
+    assertTrue(Arrays.equals(data, copy));
+  }
+
+  @Test
+  public void testEncodeDecodeColumns() throws IOException {
+    final List<Map<String, Object>> base = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i != 1000; ++i) {
+      final HashMap<String, Object> row = new HashMap<String, Object>();
+      row.put("id", (long) i * 1000);
+      row.put("ratio", i / 7.0);
+      row.put("even", i % 2 == 0);
+      row.put("host", "host-" + (i % 3));
+      row.put("tags", (i % 10 == 0) ? null : makeList(i % 4));
+      base.add(row);
+    }
+
+    final byte[] bytes = MPack.encode(MPack.Columns.encode(base));
+    assertTrue(bytes.length < MPack.encode(base).length / 2);
+
+    final MPack.Columns columns = new MPack.Columns((MPack.Extended) MPack.decode(bytes));
+    assertEquals(1000, columns.size);
+    assertEquals(999000L, columns.longs("id")[999]);
+    assertEquals(3 / 7.0, columns.doubles("ratio")[3], 0.0);
+    assertEquals(false, columns.booleans("even")[3]);
+    assertEquals("host-2", columns.strings("host")[5]);
+    for (int i = 0; i != base.size(); ++i) {
+      assertEquals(base.get(i), columns.row(i));
+    }
+    assertEquals(base, columns.rows());
+  }
+
+  @Test
+  public void testEncodeDecodeColumnsMissingKeys() throws IOException {
+    final List<Map<String, Object>> base = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i != 20; ++i) {
+      final HashMap<String, Object> row = new HashMap<String, Object>();
+      row.put("id", (long) i);
+      if (i % 3 != 0) {
+        row.put("count", (long) i * 100);
+      }
+      if (i % 2 == 0) {
+        row.put("name", (i % 4 == 0) ? null : "name-" + i);
+      }
+      base.add(row);
+    }
+
+    final MPack.Columns columns = new MPack.Columns((MPack.Extended) MPack.decode(MPack.encode(MPack.Columns.encode(base))));
+    assertEquals(base, columns.rows());
+    assertFalse(columns.row(3).containsKey("count"));
+    assertTrue(columns.row(4).containsKey("name"));
+    assertEquals(null, columns.row(4).get("name"));
+    assertFalse(columns.row(5).containsKey("name"));
+    assertEquals(2, columns.row(6).size());
+    assertFalse(columns.contains(0, "count"));
+    assertTrue(columns.contains(1, "count"));
+    assertEquals(100L, columns.longs("count")[1]);
+  }
+
+  @Test
+  public void testEncodeColumnsLinkedList() throws IOException {
+    final List<Map<String, Object>> base = new LinkedList<Map<String, Object>>();
+    for (int i = 0; i != 20; ++i) {
+      final HashMap<String, Object> row = new HashMap<String, Object>();
+      row.put("id", (long) i);
+      if (i % 3 != 0) {
+        row.put("name", "name-" + i);
+      }
+      base.add(row);
+    }
+
+    final byte[] bytes = MPack.encode(MPack.Columns.encode(base));
+    assertTrue(Arrays.equals(MPack.encode(MPack.Columns.encode(new ArrayList<Map<String, Object>>(base))), bytes));
+    assertEquals(base, new MPack.Columns((MPack.Extended) MPack.decode(bytes)).rows());
+  }
+
+  private Object testStringReferences(Object object, int capacity, int maxLength) throws IOException {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream);
+    encoder.setStringReferences(capacity);
+    encoder.encode(object);
+    assertTrue(ostream.size() <= maxLength);
+
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+    decoder.setStringReferences(capacity);
+    final Object copy = decoder.decode();
+    assertEquals(object, copy);
+    return copy;
+  }
+
+  @Test
+  public void testEncodeDecodeStringReferences() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (int i = 0; i != 100; ++i) {
+      final HashMap<String, Object> map = new HashMap<String, Object>();
+      map.put("host", "host-" + (i % 3) + ".example.com");
+      map.put("id", (long) i);
+      base.add(map);
+    }
+
+    final List<?> copy = (List<?>) testStringReferences(base, 16, MPack.encode(base).length / 2);
+    assertSame(((Map<?, ?>) copy.get(0)).get("host"), ((Map<?, ?>) copy.get(99)).get("host"));
+  }
+
+  @Test
+  public void testEncodeDecodeStringReferencesEviction() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (int i = 0; i != 300; ++i) {
+      base.add("value-" + (i % 3));
+    }
+    testStringReferences(base, 2, MPack.encode(base).length);
+    testStringReferences(base, 3, 3 * 8 + 297 * 3 + 3);
+  }
+
+  @Test
+  public void testDecodeLazyStrings() throws IOException {
+    final HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("name", "Hello\u2022World!");
+    base.put("list", Arrays.asList(makeString(300), 1L));
+    final byte[] bytes = MPack.encode(base);
+
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(bytes));
+    decoder.setLazyStrings(true);
+    final Map<?, ?> copy = (Map<?, ?>) decoder.decode();
+    final Object name = copy.get(new MPack.Utf8String("name"));
+    assertTrue(name instanceof MPack.Utf8String);
+    assertEquals(new MPack.Utf8String("Hello\u2022World!"), name);
+    assertEquals("Hello\u2022World!", name.toString());
+    assertEquals('W', ((CharSequence) name).charAt(6));
+
+    final byte[] copyBytes = MPack.encode(copy);
+    assertEquals(base, MPack.decode(copyBytes));
+    assertEquals(bytes.length, copyBytes.length);
+  }
+
+  @Test
+  public void testPatch() throws IOException {
+    final HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("name", "hello");
+    base.put("list", makeList(15));
+    base.put("map", makeMap(3));
+    base.put("drop", true);
+
+    final byte[] bytes = new MPack.Patch()
+      .set(Arrays.asList("name"), "world")
+      .set(Arrays.asList("added"), makeString(20))
+      .delete(Arrays.asList("drop"))
+      .delete(Arrays.asList("list", 0))
+      .append(Arrays.asList("list"), 15L)
+      .append(Arrays.asList("list"), 16L)
+      .set(Arrays.asList("map", "key.1"), null)
+      .apply(MPack.encode(base));
+
+    final HashMap<String, Object> expected = new HashMap<String, Object>(base);
+    final HashMap<Object, Object> map = new HashMap<Object, Object>(makeMap(3));
+    map.put("key.1", null);
+    final List<Object> list = new ArrayList<Object>(makeList(17));
+    list.remove(0);
+    expected.put("name", "world");
+    expected.put("added", makeString(20));
+    expected.put("list", list);
+    expected.put("map", map);
+    expected.remove("drop");
+    assertEquals(expected, MPack.decode(bytes));
+  }
+
+  @Test
+  public void testPatchAddedKeysOrder() throws IOException {
+    final LinkedHashMap<Object, Object> expected = new LinkedHashMap<Object, Object>();
+    expected.put("id", 1L);
+    final MPack.Patch patch = new MPack.Patch();
+    for (Object key : Arrays.<Object>asList("zeta", 7L, "alpha", "mu", 3L, "beta")) {
+      patch.set(Arrays.asList(key), key);
+      expected.put(key, key);
+    }
+    final LinkedHashMap<Object, Object> base = new LinkedHashMap<Object, Object>();
+    base.put("id", 1L);
+    assertTrue(Arrays.equals(MPack.encode(expected), patch.apply(MPack.encode(base))));
+  }
+
+  @Test(expected = IOException.class)
+  public void testPatchMissingPath() throws IOException {
+    new MPack.Patch().set(Arrays.asList("missing", "key"), 1L).apply(MPack.encode(makeMap(3)));
+  }
+
+  @Test
+  public void testLogWriter() throws Exception {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.LogWriter writer = new MPack.LogWriter(ostream, 100);
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t != threads.length; ++t) {
+      final long thread = t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (long i = 0; i != 1000; ++i) {
+              writer.write(Arrays.asList(thread, i));
+            }
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    writer.flush();
+
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+    final long[] next = new long[threads.length];
+    for (int i = 0; i != 4000; ++i) {
+      final List<?> message = (List<?>) decoder.decode();
+      final int thread = ((Long) message.get(0)).intValue();
+      assertEquals(next[thread]++, message.get(1));
+    }
+    writer.close();
+  }
+
+  @Test
+  public void testLogWriterBlockedWriterFailure() throws Exception {
+    final CountDownLatch failing = new CountDownLatch(1);
+    final MPack.LogWriter writer = new MPack.LogWriter(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          failing.await();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        throw new IOException("disk full");
+      }
+    }, 1);
+    writer.write(1L);
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(50);
+        }
+        catch (InterruptedException e) {
+        }
+        failing.countDown();
+      }
+    }).start();
+    try {
+      // Blocks until the drainer fails on the first message.
+      writer.write(2L);
+      assertTrue(false);
+    }
+    catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testLogWriterConcurrentClose() throws Exception {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.LogWriter writer = new MPack.LogWriter(ostream, 100);
+    final AtomicLong accepted = new AtomicLong();
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t != threads.length; ++t) {
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              writer.write(makeList(4));
+              accepted.incrementAndGet();
+            }
+          }
+          catch (IOException e) {
+            // closed
+          }
+        }
+      });
+      threads[t].start();
+    }
+    while (accepted.get() < 1000) {
+      Thread.sleep(1);
+    }
+    writer.close();
+    for (Thread thread : threads) {
+      thread.join();
+    }
 
+    final ByteArrayInputStream istream = new ByteArrayInputStream(ostream.toByteArray());
+    final MPack.Decoder decoder = new MPack.Decoder(istream);
+    long count = 0;
+    for (; istream.available() != 0; ++count) {
+      assertEquals(makeList(4), decoder.decode());
+    }
+    assertEquals(accepted.get(), count);
+  }
+
+  @Test
+  public void testValidate() throws IOException {
+    final HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("list", Arrays.asList(makeList(3), makeBinary(300)));
+    base.put("ext", new MPack.Extended(42, new byte[5]));
+    final byte[] bytes = MPack.encode(base);
+
+    MPack.Validation validation = MPack.validate(bytes);
+    assertTrue(validation.valid);
+    assertEquals(10L, validation.values);
+    assertEquals(3, validation.maxDepth);
+
+    final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    assertTrue(MPack.validate(direct).valid);
+    assertFalse(MPack.validate(direct, 2).valid);
+
+    validation = MPack.validate(Arrays.copyOf(bytes, bytes.length - 1));
+    assertFalse(validation.valid);
+
+    validation = MPack.validate(Arrays.copyOf(bytes, bytes.length + 1));
+    assertFalse(validation.valid);
+    assertEquals(bytes.length, validation.errorOffset);
+
+    final byte[] unknown = MPack.encode(Arrays.asList(1L, 2L, 3L));
+    unknown[2] = (byte) 0xc1;
+    validation = MPack.validate(unknown);
+    assertFalse(validation.valid);
+    assertEquals(2, validation.errorOffset);
+  }
+
+  @Test
+  public void testTranscodeJson() throws IOException {
+    final MPack.Json json = new MPack.Json();
+    final String text = "{\"name\":\"caf\\u00e9 \\\"quoted\\\"\\n\",\"list\":[1,-2,3.5,true,false,null,[]],\"map\":{},\"big\":100000}";
+    final byte[] bytes = json.fromJson(text);
+    assertTrue(MPack.validate(bytes).valid);
+
+    final Map<?, ?> map = (Map<?, ?>) MPack.decode(bytes);
+    assertEquals("caf\u00e9 \"quoted\"\n", map.get("name"));
+    assertEquals(Arrays.asList(1L, -2L, 3.5, true, false, null, new ArrayList<Object>()), map.get("list"));
+    assertEquals(100000L, map.get("big"));
+
+    final HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("list", Arrays.asList(1L, 2.5, "a\tb"));
+    final byte[] encoded = MPack.encode(base);
+    assertEquals("{\"list\":[1,2.5,\"a\\tb\"]}", json.toJson(encoded));
+    assertTrue(Arrays.equals(encoded, json.fromJson(json.toJson(encoded))));
+
+    final byte[] uint64 = new byte[9];
+    Arrays.fill(uint64, (byte) 0xff);
+    uint64[0] = (byte) 0xcf;
+    assertEquals("18446744073709551615", json.toJson(uint64));
+    uint64[1] = 0;
+    assertEquals(Long.toString(0x00ffffffffffffffL), json.toJson(uint64));
+    final byte[] uint64Key = new byte[11];
+    uint64Key[0] = (byte) 0x81;
+    System.arraycopy(uint64, 0, uint64Key, 1, 9);
+    uint64Key[2] = (byte) 0xff;
+    uint64Key[10] = (byte) 0xc0;
+    assertEquals("{\"18446744073709551615\":null}", json.toJson(uint64Key));
+
+    assertEquals("{\"type\":42,\"data\":\"AQI=\"}", json.toJson(MPack.encode(new MPack.Extended(42, new byte[] { 1, 2 }))));
+    json.binaryFormat = MPack.Json.ARRAY;
+    assertEquals("{\"1\":[1,2]}", json.toJson(MPack.encode(java.util.Collections.singletonMap(1L, new byte[] { 1, 2 }))));
+  }
+
+  @Test
+  public void testTranscodeJsonReferencedKeys() throws IOException {
+    final HashMap<String, Object> map = new HashMap<String, Object>();
+    map.put("hostname", 1L);
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream);
+    encoder.setStringReferences(16);
+    encoder.encode(Arrays.asList(map, map));
+
+    for (boolean lazy : new boolean[] { false, true }) {
+      final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+      decoder.setStringReferences(16);
+      decoder.setLazyStrings(lazy);
+      final StringBuilder out = new StringBuilder();
+      new MPack.Json().toJson(decoder, out);
+      assertEquals("[{\"hostname\":1},{\"hostname\":1}]", out.toString());
+    }
+  }
+
+  private Object fromJson(MPack.Json json, Reader in) throws IOException {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    json.fromJson(in, new MPack.Encoder(ostream));
+    return MPack.decode(ostream.toByteArray());
+  }
+
+  @Test
+  public void testTranscodeJsonStream() throws IOException {
+    final MPack.Json json = new MPack.Json();
+    final StringReader in = new StringReader("[1] [2] 3 4\n{}");
+    assertEquals(Arrays.asList(1L), fromJson(json, in));
+    assertEquals(Arrays.asList(2L), fromJson(json, in));
+    assertEquals(3L, fromJson(json, in));
+    assertEquals(4L, fromJson(json, in));
+    assertEquals(new HashMap<Object, Object>(), fromJson(json, in));
+    assertEquals(-1, in.read());
+
+    final PushbackReader pushback = new PushbackReader(new StringReader("12,"));
+    assertEquals(12L, fromJson(json, pushback));
+    assertEquals(',', pushback.read());
+  }
+
+  @Test
+  public void testTranscodeJsonStringReferences() throws IOException {
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Metrics metrics = new MPack.Metrics();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream, metrics);
+    encoder.setStringReferences(16);
+    new MPack.Json().fromJson(new StringReader("{\"greeting\":\"hello\",\"list\":[\"hello\",1]}"), encoder);
+    encoder.encode("later");
+    encoder.encode("hello");
+
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+    decoder.setStringReferences(16);
+    final Map<?, ?> map = (Map<?, ?>) decoder.decode();
+    assertEquals("hello", map.get("greeting"));
+    assertEquals(Arrays.asList("hello", 1L), map.get("list"));
+    assertEquals("later", decoder.decode());
+    assertEquals("hello", decoder.decode());
+    assertTrue(ostream.size() < MPack.encode(Arrays.asList(map, "later", "hello")).length);
+
+    final MPack.Metrics expected = new MPack.Metrics();
+    final MPack.Encoder direct = new MPack.Encoder(new ByteArrayOutputStream(), expected);
+    direct.setStringReferences(16);
+    direct.encode(map);
+    direct.encode("later");
+    direct.encode("hello");
+    assertTrue(Arrays.equals(expected.values, metrics.values));
+    assertTrue(Arrays.equals(expected.payloadBytes, metrics.payloadBytes));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTranscodeJsonTrailingInput() throws IOException {
+    new MPack.Json().fromJson("{}x");
+  }
+
+  @Test(expected = IOException.class)
+  public void testTranscodeInvalidJson() throws IOException {
+    new MPack.Json().fromJson("{\"a\":[1,2}");
+  }
+
+  @Test
+  public void testRecordStore() throws IOException {
+    final File directory = Files.createTempDirectory("mpack").toFile();
+    MPack.RecordStore store = new MPack.RecordStore(directory, 4096, 16);
+    for (long i = 0; i != 1000; ++i) {
+      assertEquals(i, store.append(Arrays.asList(i, makeString((int) (i % 50)))));
+    }
+    assertTrue(directory.list().length > 2);
+    assertEquals(Arrays.asList(537L, makeString(37)), store.read(537));
+    final List<Object> range = store.read(90, 400);
+    assertEquals(310, range.size());
+    assertEquals(Arrays.asList(399L, makeString(49)), range.get(309));
+    store.close();
+
+    // Simulate a crash in the middle of appending a record.
+    final String[] names = directory.list();
+    Arrays.sort(names);
+    final FileOutputStream torn = new FileOutputStream(new File(directory, names[names.length - 1]), true);
+    torn.write(new byte[] { (byte) 0x92, 0x01 });
+    torn.close();
+
+    store = new MPack.RecordStore(directory, 4096, 16);
+    assertEquals(1000L, store.nextSequence());
+    assertEquals(1000L, store.append("after"));
+    assertEquals("after", store.read(1000));
+    assertEquals(Arrays.asList(999L, makeString(49)), store.read(999));
+    store.close();
+
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testRecordStoreTornIndexedRecord() throws IOException {
+    final File directory = Files.createTempDirectory("mpack").toFile();
+    MPack.RecordStore store = new MPack.RecordStore(directory, 1 << 20, 2);
+    for (long i = 0; i != 6; ++i) {
+      store.append(Arrays.asList(i, "old-" + i));
+    }
+    store.close();
+
+    // Simulate a crash after the index entry of record 6 was written but
+    // before its data was complete.
+    final File records = new File(directory, String.format("%020d.mpack", 0));
+    final long size = records.length();
+    final FileOutputStream torn = new FileOutputStream(records, true);
+    torn.write(new byte[] { (byte) 0x92, 0x06 });
+    torn.close();
+    final FileOutputStream index = new FileOutputStream(new File(directory, String.format("%020d.index", 0)), true);
+    index.write(ByteBuffer.allocate(8).putLong(0, size).array());
+    index.close();
+
+    store = new MPack.RecordStore(directory, 1 << 20, 2);
+    assertEquals(6L, store.nextSequence());
+    for (long i = 6; i != 9; ++i) {
+      assertEquals(i, store.append(Arrays.asList(i, "new-" + i)));
+    }
+    for (long i = 0; i != 9; ++i) {
+      assertEquals(Arrays.asList(i, ((i < 6) ? "old-" : "new-") + i), store.read(i));
+    }
+    store.close();
+
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testEncodeRaw() throws IOException {
+    final LinkedHashMap<String, Object> document = new LinkedHashMap<String, Object>();
+    document.put("name", makeString(100));
+    document.put("list", Arrays.asList(1L, 2L, 3L));
+    final LinkedHashMap<Object, Object> base = new LinkedHashMap<Object, Object>();
+    base.put("id", 42L);
+    base.put("document", document);
+
+    final LinkedHashMap<Object, Object> raw = new LinkedHashMap<Object, Object>();
+    raw.put(MPack.encodeRaw("id"), 42L);
+    raw.put(MPack.encodeRaw("document"), MPack.encodeRaw(document));
+    final byte[] bytes = MPack.encode(raw);
+    assertTrue(Arrays.equals(MPack.encode(base), bytes));
+    assertEquals(base, MPack.decode(bytes));
+
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream);
+    encoder.setStringReferences(16);
+    encoder.encode(Arrays.asList(document, raw));
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+    decoder.setStringReferences(16);
+    assertEquals(Arrays.asList(document, base), decoder.decode());
+
+    document.put("blob", makeBinary(10));
+    document.put("ext", new MPack.Extended(7, new byte[3]));
+    raw.put(MPack.encodeRaw("document"), MPack.encodeRaw(document));
+    final MPack.Metrics metrics = new MPack.Metrics();
+    new MPack.Encoder(new ByteArrayOutputStream(), metrics).encode(raw);
+    final MPack.Metrics expected = new MPack.Metrics();
+    new MPack.Encoder(new ByteArrayOutputStream(), expected).encode(base);
+    assertTrue(Arrays.equals(expected.values, metrics.values));
+    assertTrue(Arrays.equals(expected.payloadBytes, metrics.payloadBytes));
+    assertTrue(Arrays.equals(expected.containerSizes, metrics.containerSizes));
+    assertTrue(Arrays.equals(expected.messageDepths, metrics.messageDepths));
+  }
+
+  @Test
+  public void testDecodeCompositeBuffers() throws IOException {
+    final List<Object> base = Arrays.asList(1L, 1000000L, 1e100, makeString(1000), makeBinary(300), "end");
+    final byte[] bytes = MPack.encode(base);
+    for (int size : new int[] { 1, 3, 7, 64, 4096 }) {
+      final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+      for (int i = 0; i < bytes.length; i += size) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Math.min(size, bytes.length - i));
+        buffer.put(bytes, i, buffer.capacity()).flip();
+        buffers.add(buffer);
+      }
+      final List<?> copy = (List<?>) MPack.decode(buffers);
+      assertEquals(base.subList(0, 4), copy.subList(0, 4));
+      assertTrue(Arrays.equals((byte[]) base.get(4), (byte[]) copy.get(4)));
+      assertEquals("end", copy.get(5));
+      assertEquals(0, buffers.get(0).position());
+    }
+  }
+
+  @Test
+  public void testDecodeCompositeScalars() throws IOException {
+    final List<Object> base = Arrays.asList(-200L, 60000L, -70000L, 0xFFFFFFF0L, Long.MIN_VALUE, Long.MAX_VALUE,
+        3.5f, 1e100, makeString(300), Collections.nCopies(20, 1L));
+    final byte[] bytes = MPack.encode(base);
+    assertEquals(base, MPack.decode(bytes));
+    for (int split = 0; split <= bytes.length; ++split) {
+      final List<ByteBuffer> buffers = Arrays.asList(ByteBuffer.wrap(bytes, 0, split).slice(),
+          ByteBuffer.wrap(bytes, split, bytes.length - split).slice());
+      assertEquals(base, MPack.decode(buffers));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecodeCompositeTruncated() throws IOException {
+    final byte[] bytes = MPack.encode(Arrays.asList(Long.MIN_VALUE));
+    MPack.decode(Arrays.asList(ByteBuffer.wrap(bytes, 0, 3).slice(), ByteBuffer.wrap(bytes, 3, 4).slice()));
+  }
+
+  @Test
+  public void testEncodeDecodeStream() throws IOException {
+    final byte[] payload = makeBinary(300000);
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    final MPack.Encoder encoder = new MPack.Encoder(ostream);
+    encoder.encode("name");
+    encoder.encodeStream(new ByteArrayInputStream(payload), payload.length);
+    encoder.encodeStream(new ByteArrayInputStream(payload), 100);
+    encoder.encode(makeString(1000));
+    encoder.encode(42L);
+
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+    assertEquals("name", decoder.decode());
+    final MPack.PayloadInputStream stream = decoder.decodeStream();
+    assertEquals(payload.length, stream.length);
+    final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    stream.transferTo(copy);
+    assertTrue(Arrays.equals(payload, copy.toByteArray()));
+    final MPack.PayloadInputStream skipped = decoder.decodeStream();
+    assertEquals(100, skipped.length);
+    skipped.read();
+    skipped.close();
+    final MPack.PayloadInputStream string = decoder.decodeStream();
+    assertEquals(makeString(1000), new String(string.readAllBytes(), "UTF-8"));
+    assertEquals(42L, decoder.decode());
+  }
+
+  private enum Color { RED, GREEN }
+
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void testEncodeRegisteredCodecs() throws IOException {
+    MPack.register(UUID.class, new MPack.Codec<UUID>() {
+      public void encode(MPack.Encoder encoder, UUID object) throws IOException {
+        encoder.encode(object.toString());
+      }
+    });
+    MPack.register(Set.class, new MPack.Codec<Set>() {
+      public void encode(MPack.Encoder encoder, Set object) throws IOException {
+        encoder.encode(new ArrayList<Object>((Set<?>) object));
+      }
+    });
+    MPack.register(Enum.class, new MPack.Codec<Enum>() {
+      public void encode(MPack.Encoder encoder, Enum object) throws IOException {
+        encoder.encode(object.name());
+      }
+    });
+    try {
+      final UUID uuid = new UUID(1L, 2L);
+      final LinkedHashSet<Object> set = new LinkedHashSet<Object>(Arrays.asList(Color.GREEN, uuid, 3L));
+      final MPack.Metrics metrics = new MPack.Metrics();
+      final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+      new MPack.Encoder(ostream, metrics).encode(set);
+      assertEquals(1, metrics.messages);
+      assertEquals(Arrays.asList("GREEN", uuid.toString(), 3L), MPack.decode(ostream.toByteArray()));
+    }
+    finally {
+      MPack.unregister(UUID.class);
+      MPack.unregister(Set.class);
+      MPack.unregister(Enum.class);
+    }
+    try {
+      MPack.encode(Color.RED);
+      assertTrue(false);
+    }
+    catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testDecodeSmallIntegers() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (long i = -300; i != 300; ++i) {
+      base.add(i);
+    }
+    final List<?> first = (List<?>) MPack.decode(MPack.encode(base));
+    final List<?> second = (List<?>) MPack.decode(MPack.encode(base));
+    assertEquals(base, first);
+    for (int i = 300 - 128; i != 300 + 256; ++i) {
+      assertSame(first.get(i), second.get(i));
+    }
+  }
+
+  @Test
+  public void testEncodeParallel() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    final HashMap<Object, Object> map = new HashMap<Object, Object>();
+    for (long i = 0; i != 20000; ++i) {
+      base.add(Arrays.asList(i, "value-" + i, i * 0.5));
+      map.put(i, "value-" + i);
+    }
+    base.add(map);
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+      final MPack.Encoder encoder = new MPack.Encoder(ostream);
+      encoder.setParallelism(pool, 1000);
+      encoder.encode(base);
+      assertTrue(Arrays.equals(MPack.encode(base), ostream.toByteArray()));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testEncodeParallelFromPool() throws Exception {
+    final List<Object> base = new ArrayList<Object>();
+    for (long i = 0; i != 5000; ++i) {
+      base.add(Arrays.asList(i, "value-" + i));
+    }
+    // With a single worker, waiting for the chunks must not block it.
+    final ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      final byte[] bytes = pool.submit(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+          final MPack.Encoder encoder = new MPack.Encoder(ostream);
+          encoder.setParallelism(pool, 100);
+          encoder.encode(base);
+          return ostream.toByteArray();
+        }
+      }).get(5, TimeUnit.SECONDS);
+      assertTrue(Arrays.equals(MPack.encode(base), bytes));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompareEncoded() throws IOException {
+    final List<byte[]> ordered = Arrays.asList(
+      MPack.encode(null),
+      MPack.encode(false),
+      MPack.encode(true),
+      MPack.encode(Double.NEGATIVE_INFINITY),
+      MPack.encode(Long.MIN_VALUE),
+      MPack.encode(-100000L),
+      MPack.encode(-1.5f),
+      MPack.encode(-1L),
+      MPack.encode(0L),
+      MPack.encode(0.25),
+      MPack.encode(200L),
+      MPack.encode(70000L),
+      MPack.encode(Long.MAX_VALUE),
+      new byte[] { (byte) 0xcf, (byte) 0xff, 0, 0, 0, 0, 0, 0, 0 },
+      MPack.encode(1e30),
+      MPack.encode(Double.NaN),
+      MPack.encode(""),
+      MPack.encode("a"),
+      MPack.encode("ab"),
+      MPack.encode("\u00e9"),
+      MPack.encode(new byte[] { 0 }),
+      MPack.encode(Arrays.asList()),
+      MPack.encode(Arrays.asList(1L, "a")),
+      MPack.encode(Arrays.asList(1L, "b")),
+      MPack.encode(Arrays.asList(2L)),
+      MPack.encode(new HashMap<Object, Object>()),
+      MPack.encode(new MPack.Extended(1, new byte[] { 1 })));
+    final List<MPack.Raw> shuffled = new ArrayList<MPack.Raw>();
+    for (byte[] bytes : ordered) {
+      shuffled.add(new MPack.Raw(bytes));
+    }
+    Collections.shuffle(shuffled, new Random(1));
+    shuffled.sort(MPack.RAW_ORDER);
+    for (int i = 0; i != ordered.size(); ++i) {
+      assertTrue(Arrays.equals(ordered.get(i), shuffled.get(i).getBytes()));
+    }
+    assertEquals(0, MPack.compare(MPack.encode(1L), 0, MPack.encode(1.0), 0));
+  }
+
+  @Test
+  public void testCompareMalformed() throws IOException {
+    final byte[] value = MPack.encode(Arrays.asList(1L, "abc"));
+    final List<byte[]> malformed = Arrays.asList(
+      new byte[0],
+      new byte[] { (byte) 0xc1 },
+      Arrays.copyOf(MPack.encode(1000000L), 3),
+      Arrays.copyOf(MPack.encode(1.5), 5),
+      Arrays.copyOf(MPack.encode("abc"), 2),
+      Arrays.copyOf(MPack.encode(new MPack.Extended(1, new byte[4])), 1),
+      Arrays.copyOf(value, value.length - 1),
+      Arrays.copyOf(value, 1));
+    for (byte[] bytes : malformed) {
+      for (int i = 0; i != 2; ++i) {
+        try {
+          if (i == 0) {
+            MPack.compare(bytes, 0, value, 0);
+          }
+          else {
+            MPack.compare(value, 0, bytes, 0);
+          }
+          assertTrue(false);
+        }
+        catch (IllegalArgumentException e) {
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEncodeDecodeKey() throws IOException {
+    final List<Object> ordered = Arrays.asList(
+      null, false, true, Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE,
+      Double.NEGATIVE_INFINITY, -1.5, -0.0, 0.0, 2.5, Double.POSITIVE_INFINITY,
+      "", "a", "a\u0000", "a\u0000b", "ab", "\u00e9",
+      Arrays.asList(), Arrays.asList(1L), Arrays.asList(1L, "a"), Arrays.asList(2L));
+    for (int i = 0; i != ordered.size(); ++i) {
+      final byte[] key = MPack.encodeKey(ordered.get(i));
+      assertEquals(ordered.get(i), MPack.decodeKey(key));
+      if (i != 0) {
+        assertTrue(Arrays.compareUnsigned(MPack.encodeKey(ordered.get(i - 1)), key) < 0);
+      }
+    }
+  }
+
+  @Test
+  public void testSortManyRuns() throws IOException {
+    final File input = File.createTempFile("mpack", ".records");
+    final File output = File.createTempFile("mpack", ".sorted");
+    try {
+      final FileOutputStream ostream = new FileOutputStream(input);
+      final MPack.Encoder encoder = new MPack.Encoder(ostream);
+      final int count = 5 * MPack.MAX_MERGED_RUNS;
+      for (int i = 0; i != count; ++i) {
+        encoder.encode(Arrays.asList((long) (count - i) % 7, (long) i));
+      }
+      ostream.close();
+
+      // One run per record, so runs are merged over several passes.
+      MPack.sort(input, output, new Comparator<MPack.Raw>() {
+        public int compare(MPack.Raw a, MPack.Raw b) {
+          return MPack.compare(a.getBytes(), 1, b.getBytes(), 1);
+        }
+      }, 1);
+
+      final MPack.Decoder decoder = new MPack.Decoder(new FileInputStream(output));
+      List<?> previous = (List<?>) decoder.decode();
+      for (int i = 1; i != count; ++i) {
+        final List<?> record = (List<?>) decoder.decode();
+        final int order = ((Long) previous.get(0)).compareTo((Long) record.get(0));
+        assertTrue(order < 0 || (order == 0 && (Long) previous.get(1) < (Long) record.get(1)));
+        previous = record;
+      }
+      assertEquals(input.length(), output.length());
+    }
+    finally {
+      input.delete();
+      output.delete();
+    }
+  }
+
+  @Test
+  public void testSortRecordFile() throws IOException {
+    final File input = File.createTempFile("mpack", ".records");
+    final File output = File.createTempFile("mpack", ".sorted");
+    try {
+      final Random random = new Random(2);
+      final List<Object> records = new ArrayList<Object>();
+      final FileOutputStream ostream = new FileOutputStream(input);
+      final MPack.Encoder encoder = new MPack.Encoder(ostream);
+      for (int i = 0; i != 5000; ++i) {
+        final Object record = Arrays.asList((long) random.nextInt(1000), "record-" + i);
+        records.add(record);
+        encoder.encode(record);
+      }
+      ostream.close();
+
+      MPack.sort(input, output, 4096);
+
+      final MPack.Decoder decoder = new MPack.Decoder(new FileInputStream(output));
+      final List<Object> sorted = new ArrayList<Object>();
+      for (int i = 0; i != records.size(); ++i) {
+        sorted.add(decoder.decode());
+      }
+      for (int i = 1; i != sorted.size(); ++i) {
+        assertTrue(MPack.compare(MPack.encode(sorted.get(i - 1)), 0, MPack.encode(sorted.get(i)), 0) <= 0);
+      }
+      final Comparator<Object> byName = new Comparator<Object>() {
+        public int compare(Object a, Object b) {
+          return ((String) ((List<?>) a).get(1)).compareTo((String) ((List<?>) b).get(1));
+        }
+      };
+      sorted.sort(byName);
+      records.sort(byName);
+      assertEquals(records, sorted);
+      assertEquals(input.length(), output.length());
+    }
+    finally {
+      input.delete();
+      output.delete();
+    }
+  }
+
+  @Test
+  public void testDecodeAdaptive() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (long i = 0; i != 200; ++i) {
+      final LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+      map.put("id", i);
+      map.put((i % 3 == 0) ? "name" : "title", "message-" + i);
+      map.put("tags", Arrays.asList("a", "b"));
+      if (i % 10 == 0) {
+        map.put(42L, "numeric key");
+      }
+      base.add(map);
+    }
+    final MPack.Metrics metrics = new MPack.Metrics();
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(MPack.encode(base)), metrics);
+    decoder.setAdaptive(4);
+    final List<?> copy = (List<?>) decoder.decode();
+    assertEquals(base, copy);
+
+    final MPack.Metrics expected = new MPack.Metrics();
+    new MPack.Decoder(new ByteArrayInputStream(MPack.encode(base)), expected).decode();
+    assertTrue(Arrays.equals(expected.values, metrics.values));
+    assertTrue(Arrays.equals(expected.payloadBytes, metrics.payloadBytes));
+
+    final List<Object> titles = new ArrayList<Object>();
+    for (Object map : copy) {
+      for (Object key : ((Map<?, ?>) map).keySet()) {
+        if ("title".equals(key)) {
+          titles.add(key);
+        }
+      }
+    }
+    assertSame(titles.get(titles.size() - 2), titles.get(titles.size() - 1));
+  }
+
+  @Test
+  public void testDecodeAdaptiveSameSize() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (long i = 0; i != 40; ++i) {
+      final LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+      map.put((i % 2 == 0) ? "first" : "second", i);
+      map.put((i % 2 == 0) ? "value" : "other", "message-" + i);
+      base.add(map);
+    }
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(MPack.encode(base)));
+    decoder.setAdaptive(4);
+    final List<?> copy = (List<?>) decoder.decode();
+    assertEquals(base, copy);
+    for (String name : Arrays.asList("first", "value", "second", "other")) {
+      final List<Object> keys = new ArrayList<Object>();
+      for (Object map : copy) {
+        for (Object key : ((Map<?, ?>) map).keySet()) {
+          if (name.equals(key)) {
+            keys.add(key);
+          }
+        }
+      }
+      assertSame(keys.get(keys.size() - 2), keys.get(keys.size() - 1));
+    }
+  }
+
+  @Test
+  public void testDecodeAdaptiveSaturated() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (int shape = 0; shape != 100; ++shape) {
+      for (long i = 0; i != 3; ++i) {
+        final LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+        map.put("id", i);
+        map.put("field-" + shape, "value");
+        base.add(map);
+      }
+    }
+    final List<Object> again = new ArrayList<Object>(base);
+    again.addAll(base);
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(MPack.encode(again)));
+    decoder.setAdaptive(2);
+    final List<?> copy = (List<?>) decoder.decode();
+    assertEquals(again, copy);
+    // Shapes learned before saturation are still used.
+    final Iterator<?> first = ((Map<?, ?>) copy.get(2)).keySet().iterator();
+    final Iterator<?> last = ((Map<?, ?>) copy.get(base.size() + 2)).keySet().iterator();
+    assertSame(first.next(), last.next());
+    assertSame(first.next(), last.next());
+  }
+
+  @Test
+  public void testDecodeAdaptiveLazyStrings() throws IOException {
+    final List<Object> base = new ArrayList<Object>();
+    for (long i = 0; i != 20; ++i) {
+      final LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+      map.put("id", i);
+      base.add(map);
+    }
+    final byte[] bytes = MPack.encode(base);
+    final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+    ostream.write(bytes);
+    ostream.write(bytes);
+    final MPack.Decoder decoder = new MPack.Decoder(new ByteArrayInputStream(ostream.toByteArray()));
+    decoder.setAdaptive(4);
+    decoder.decode();
+    // Shapes learned with String keys must not leak into lazy decoding.
+    decoder.setLazyStrings(true);
+    for (Object map : (List<?>) decoder.decode()) {
+      assertTrue(((Map<?, ?>) map).keySet().iterator().next() instanceof MPack.Utf8String);
+    }
+  }
+
+  @Test
+  public void testEncodeCharSequence() throws IOException {
+    final String[] strings = {
+      "", "Hello", "Hello\u2022World!", "\ud83d\ude00 smile", "bad \ud83d surrogate\ude00",
+      makeString(20), makeString(300), makeString(70000) + "\u00e9",
+    };
+    for (String string : strings) {
+      final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+      final MPack.Encoder encoder = new MPack.Encoder(ostream);
+      encoder.encode(new StringBuilder(string));
+      final char[] chars = ("<" + string + ">").toCharArray();
+      encoder.encode(chars, 1, string.length());
+      final byte[] bytes = MPack.encode(string);
+      final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      expected.write(bytes);
+      expected.write(bytes);
+      assertTrue(Arrays.equals(expected.toByteArray(), ostream.toByteArray()));
+    }
+    assertEquals(Arrays.asList("a", "b"), MPack.decode(MPack.encode(Arrays.asList(new StringBuilder("a"), new StringBuilder("b")))));
+  }
+
+  @Test
+  public void testSizer() throws IOException {
+    final MPack.Sizer sizer = new MPack.Sizer(1, 0.9);
+    assertEquals(MPack.Sizer.MIN_BUFFER_SIZE, sizer.bufferSize());
+    for (int i = 0; i != 100; ++i) {
+      final Object message = makeString((i < 95) ? 1000 : 100000);
+      assertEquals(message, MPack.decode(MPack.encode(message, sizer)));
+    }
+    assertEquals(1024, sizer.bufferSize());
+    final long[] histogram = sizer.histogram();
+    assertEquals(95, histogram[MPack.Metrics.bucket(1003)]);
+    assertEquals(5, histogram[MPack.Metrics.bucket(100005)]);
+  }
+
+}